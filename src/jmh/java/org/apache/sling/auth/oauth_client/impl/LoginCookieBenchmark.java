@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.Cookie;
+
+import org.apache.sling.auth.core.spi.AuthenticationInfo;
+import org.apache.sling.auth.oauth_client.spi.OidcAuthCredentials;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.BundleContext;
+import org.osgi.util.converter.Converters;
+
+/**
+ * Micro-benchmark for the complete login cookie check executed by the {@link OidcAuthenticationHandler}
+ * for each authenticated request: cookie lookup, Base64 decoding, validation and creation of the
+ * {@link AuthenticationInfo}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoginCookieBenchmark {
+
+    private static final String COOKIE_NAME = "sling.oidcauth";
+
+    @Param({"LEGACY", "COMPACT"})
+    private String cookieFormat;
+
+    @Param({"0", "1000"})
+    private int cookieCacheSize;
+
+    private SlingLoginCookieManager cookieManager;
+    private MockRequest requestWithValidCookie;
+    private MockRequest requestWithInvalidCookie;
+
+    @Setup
+    public void setup() throws Exception {
+        File tokenFile = new File(Files.createTempDirectory("login-cookie-benchmark").toFile(), "cookie-tokens.bin");
+        SlingLoginCookieManager.SlingLoginCookieManagerConfig config = Converters.standardConverter()
+            .convert(Map.of("tokenFile", tokenFile.getAbsolutePath(), "form_token_fastseed", true, "cookieName", COOKIE_NAME,
+                    "cookieFormat", cookieFormat, "cookieCacheSize", cookieCacheSize))
+            .to(SlingLoginCookieManager.SlingLoginCookieManagerConfig.class);
+        cookieManager = new SlingLoginCookieManager(config, mock(BundleContext.class));
+
+        MockResponse response = new MockResponse();
+        cookieManager.setLoginCookie(new MockRequest(), response, mock(SlingRepository.class), new OidcAuthCredentials("benchmark-user", "oidc"));
+        String setCookie = response.getHeader("Set-Cookie");
+        String cookieValue = setCookie.substring(setCookie.indexOf('=') + 1, setCookie.indexOf(';'));
+
+        requestWithValidCookie = new MockRequest();
+        requestWithValidCookie.addCookie(new Cookie(COOKIE_NAME, cookieValue));
+
+        requestWithInvalidCookie = new MockRequest();
+        requestWithInvalidCookie.addCookie(new Cookie(COOKIE_NAME, "x" + cookieValue.substring(1)));
+    }
+
+    @Benchmark
+    public AuthenticationInfo verifyLoginCookie_valid() {
+        return cookieManager.verifyLoginCookie(requestWithValidCookie);
+    }
+
+    @Benchmark
+    public AuthenticationInfo verifyLoginCookie_invalid() {
+        return cookieManager.verifyLoginCookie(requestWithInvalidCookie);
+    }
+}
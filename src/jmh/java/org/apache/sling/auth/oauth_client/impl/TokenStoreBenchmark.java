@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Micro-benchmarks for the {@link TokenStore} operations executed for each request carrying a login cookie
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenStoreBenchmark {
+
+    private static final long SESSION_TIMEOUT_MSEC = TimeUnit.HOURS.toMillis(8);
+    private static final String USER_ID = "benchmark-user";
+
+    private TokenStore store;
+    private long expires;
+    private String validCookie;
+    private String expiredCookie;
+    private String malformedCookie;
+    private String wrongKeyCookie;
+    private byte[] validCompactCookie;
+
+    @Setup
+    public void setup() throws Exception {
+        File dir = Files.createTempDirectory("tokenstore-benchmark").toFile();
+        store = new TokenStore(new File(dir, "cookie-tokens.bin"), SESSION_TIMEOUT_MSEC, true);
+        TokenStore otherStore = new TokenStore(new File(dir, "other-cookie-tokens.bin"), SESSION_TIMEOUT_MSEC, true);
+
+        expires = System.currentTimeMillis() + SESSION_TIMEOUT_MSEC;
+        validCookie = store.encode(expires, USER_ID);
+        expiredCookie = store.encode(1, USER_ID);
+        malformedCookie = "not-a-login-cookie";
+        wrongKeyCookie = otherStore.encode(expires, USER_ID);
+        validCompactCookie = store.encodeCompact(expires, USER_ID);
+    }
+
+    @Benchmark
+    public String encode() throws Exception {
+        return store.encode(expires, USER_ID);
+    }
+
+    @Benchmark
+    public byte[] encodeCompact() {
+        return store.encodeCompact(expires, USER_ID);
+    }
+
+    @Benchmark
+    public LoginCookie validate_compact() {
+        return store.validate(validCompactCookie);
+    }
+
+    @Benchmark
+    public boolean isValid_valid() {
+        return store.isValid(validCookie);
+    }
+
+    @Benchmark
+    public boolean isValid_expired() {
+        return store.isValid(expiredCookie);
+    }
+
+    @Benchmark
+    public boolean isValid_malformed() {
+        return store.isValid(malformedCookie);
+    }
+
+    @Benchmark
+    public boolean isValid_wrongKey() {
+        return store.isValid(wrongKeyCookie);
+    }
+
+    @Benchmark
+    public String[] split() {
+        return TokenStore.split(validCookie);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time to activate a {@link TokenStore} with previously persisted tokens, and the time until
+ * the first cookie can be issued. Each fork starts a new JVM, so that the first iteration shows the cost
+ * of a cold start.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 20)
+@Fork(5)
+public class TokenStoreStartupBenchmark {
+
+    private static final long SESSION_TIMEOUT_MSEC = TimeUnit.HOURS.toMillis(8);
+
+    @Param({"true", "false"})
+    private boolean fastSeed;
+
+    private File tokenFile;
+    private TokenStore store;
+
+    @Setup(Level.Trial)
+    public void createTokenFile() throws Exception {
+        tokenFile = new File(Files.createTempDirectory("tokenstore-startup-benchmark").toFile(), "cookie-tokens.bin");
+        TokenStore initial = new TokenStore(tokenFile, SESSION_TIMEOUT_MSEC, true);
+        initial.encode(System.currentTimeMillis() + SESSION_TIMEOUT_MSEC, "benchmark-user");
+        initial.close();
+    }
+
+    @TearDown(Level.Invocation)
+    public void close() {
+        if (store != null) {
+            store.close();
+            store = null;
+        }
+    }
+
+    @Benchmark
+    public TokenStore activate() throws Exception {
+        store = new TokenStore(tokenFile, SESSION_TIMEOUT_MSEC, fastSeed);
+        return store;
+    }
+
+    @Benchmark
+    public String activateAndEncode() throws Exception {
+        store = new TokenStore(tokenFile, SESSION_TIMEOUT_MSEC, fastSeed);
+        return store.encode(System.currentTimeMillis() + SESSION_TIMEOUT_MSEC, "benchmark-user");
+    }
+}
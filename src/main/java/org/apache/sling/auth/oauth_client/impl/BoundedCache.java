@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A size-bounded map of values with an expiry time, which evicts the least recently used entry when it is full.
+ * <p>
+ * All operations run in constant time under a single lock, so a full cache never scans its entries. Expired
+ * entries are removed when they are looked up, or evicted like any other entry.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+class BoundedCache<K, V> {
+
+    private record Entry<V>(@NotNull V value, long expires) {
+    }
+
+    private final Map<K, Entry<V>> entries;
+
+    BoundedCache(int maxSize) {
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param key the key
+     * @param now the current time in milliseconds
+     * @return the value or <code>null</code> if there is no value for the key or it has expired
+     */
+    @Nullable V get(@NotNull K key, long now) {
+        synchronized (entries) {
+            Entry<V> entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expires() <= now) {
+                entries.remove(key);
+                return null;
+            }
+            return entry.value();
+        }
+    }
+
+    /**
+     * Adds a value, evicting the least recently used entry if the cache is full.
+     *
+     * @param key the key
+     * @param value the value
+     * @param expires the time in milliseconds at which the value expires
+     */
+    void put(@NotNull K key, @NotNull V value, long expires) {
+        synchronized (entries) {
+            entries.put(key, new Entry<>(value, expires));
+        }
+    }
+
+    /**
+     * Adds a value unless there is a value for the key which has not expired yet.
+     *
+     * @param key the key
+     * @param value the value
+     * @param expires the time in milliseconds at which the value expires
+     * @param now the current time in milliseconds
+     * @return <code>true</code> if the value was added
+     */
+    boolean putIfAbsent(@NotNull K key, @NotNull V value, long expires, long now) {
+        synchronized (entries) {
+            Entry<V> entry = entries.get(key);
+            if (entry != null && entry.expires() > now) {
+                return false;
+            }
+            entries.put(key, new Entry<>(value, expires));
+            return true;
+        }
+    }
+
+    /**
+     * Removes the value for a key.
+     */
+    void remove(@NotNull K key) {
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Removes the value for a key, if it is still the given value.
+     */
+    void remove(@NotNull K key, @NotNull V value) {
+        synchronized (entries) {
+            Entry<V> entry = entries.get(key);
+            if (entry != null && entry.value() == value) {
+                entries.remove(key);
+            }
+        }
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+}
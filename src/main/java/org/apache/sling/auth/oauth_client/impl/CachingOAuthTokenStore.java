@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import static org.osgi.service.component.annotations.ConfigurationPolicy.REQUIRE;
+
+import java.util.Hashtable;
+import java.util.Map;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.auth.oauth_client.ClientConnection;
+import org.apache.sling.auth.oauth_client.impl.OAuthTokenCache.TokenType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+/**
+ * Caches the tokens of the configured {@link OAuthTokenStore} in memory.
+ *
+ * <p>The caching store is registered with a higher service ranking than the stores it wraps. Only valid
+ * tokens are cached, so that tokens stored through other cluster nodes are picked up right away. Writes go
+ * through to the backing store and replace the cached tokens. Clearing the access token invalidates the
+ * cached tokens of the user and connection.</p>
+ *
+ * <p>Tokens cleared or replaced through another cluster node may still be returned by this node for up to
+ * the configured time to live.</p>
+ */
+@Component(configurationPolicy = REQUIRE, service = OAuthTokenStore.class,
+        property = Constants.SERVICE_RANKING + ":Integer=100")
+@Designate(ocd = CachingOAuthTokenStore.Config.class)
+public class CachingOAuthTokenStore implements OAuthTokenStore {
+
+    @ObjectClassDefinition(name = "Caching OAuth Token Store",
+            description = "Caches the tokens of the configured OAuth token store in memory")
+    @interface Config {
+        @AttributeDefinition(name = "Maximum Size",
+                description = "Maximum number of cached tokens")
+        int maxSize() default 10000;
+
+        @AttributeDefinition(name = "Time to Live",
+                description = "Maximum time in milliseconds for which a token is cached. Access tokens are never " +
+                        "cached beyond their expiry.")
+        long timeToLive() default 60000;
+    }
+
+    private final OAuthTokenStore delegate;
+    private final OAuthTokenCache cache;
+    private final ServiceRegistration<OAuthTokenCacheMBean> cacheRegistration;
+
+    @Activate
+    public CachingOAuthTokenStore(
+            @Reference(target = "(!(component.name=org.apache.sling.auth.oauth_client.impl.CachingOAuthTokenStore))") OAuthTokenStore delegate,
+            Config config, BundleContext bundleContext) {
+        this(delegate, new OAuthTokenCache(config.maxSize(), config.timeToLive()), bundleContext);
+    }
+
+    CachingOAuthTokenStore(@NotNull OAuthTokenStore delegate, @NotNull OAuthTokenCache cache, @Nullable BundleContext bundleContext) {
+        this.delegate = delegate;
+        this.cache = cache;
+        this.cacheRegistration = bundleContext != null ? bundleContext.registerService(OAuthTokenCacheMBean.class,
+                cache, new Hashtable<>(Map.of("jmx.objectname", OAuthTokenCacheMBean.OBJECT_NAME))) : null;
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        if (cacheRegistration != null) {
+            cacheRegistration.unregister();
+        }
+    }
+
+    @Override
+    public @NotNull OAuthToken getAccessToken(@NotNull ClientConnection connection, @NotNull ResourceResolver resolver) throws OAuthException {
+        String userId = resolver.getUserID();
+        if (userId == null) {
+            return delegate.getAccessToken(connection, resolver);
+        }
+        OAuthToken token = cache.get(userId, connection.name(), TokenType.ACCESS);
+        if (token == null) {
+            token = delegate.getAccessToken(connection, resolver);
+            cache.put(userId, connection.name(), TokenType.ACCESS, token);
+        }
+        return token;
+    }
+
+    @Override
+    public @NotNull OAuthToken getRefreshToken(@NotNull ClientConnection connection, @NotNull ResourceResolver resolver) throws OAuthException {
+        String userId = resolver.getUserID();
+        if (userId == null) {
+            return delegate.getRefreshToken(connection, resolver);
+        }
+        OAuthToken token = cache.get(userId, connection.name(), TokenType.REFRESH);
+        if (token == null) {
+            token = delegate.getRefreshToken(connection, resolver);
+            cache.put(userId, connection.name(), TokenType.REFRESH, token);
+        }
+        return token;
+    }
+
+    @Override
+    public @NotNull StoredTokens getTokens(@NotNull ClientConnection connection, @NotNull ResourceResolver resolver) throws OAuthException {
+        String userId = resolver.getUserID();
+        if (userId == null) {
+            return delegate.getTokens(connection, resolver);
+        }
+        OAuthToken accessToken = cache.get(userId, connection.name(), TokenType.ACCESS);
+        if (accessToken != null) {
+            return new StoredTokens(accessToken, null);
+        }
+        StoredTokens tokens = delegate.getTokens(connection, resolver);
+        cache.put(userId, connection.name(), TokenType.ACCESS, tokens.accessToken());
+        if (tokens.refreshToken() != null) {
+            cache.put(userId, connection.name(), TokenType.REFRESH, tokens.refreshToken());
+        }
+        return tokens;
+    }
+
+    @Override
+    public void persistTokens(@NotNull ClientConnection connection, @NotNull ResourceResolver resolver, @NotNull OAuthTokens tokens) throws OAuthException {
+        String userId = resolver.getUserID();
+        if (userId != null) {
+            cache.invalidate(userId, connection.name());
+        }
+        delegate.persistTokens(connection, resolver, tokens);
+        if (userId == null) {
+            return;
+        }
+        // lookups running concurrently with the write may have cached the previous tokens
+        cache.invalidate(userId, connection.name());
+        if (tokens.accessToken() != null) {
+            long expiresAt = tokens.expiresAt() > 0 ? System.currentTimeMillis() + tokens.expiresAt() * 1000 : 0;
+            cache.put(userId, connection.name(), TokenType.ACCESS, new OAuthToken(TokenState.VALID, tokens.accessToken(), expiresAt));
+        }
+        if (tokens.refreshToken() != null) {
+            cache.put(userId, connection.name(), TokenType.REFRESH, new OAuthToken(TokenState.VALID, tokens.refreshToken()));
+        }
+    }
+
+    @Override
+    public void clearAccessToken(@NotNull ClientConnection connection, @NotNull ResourceResolver resolver) throws OAuthException {
+        String userId = resolver.getUserID();
+        if (userId != null) {
+            cache.invalidate(userId, connection.name());
+        }
+        delegate.clearAccessToken(connection, resolver);
+        if (userId != null) {
+            // lookups running concurrently with the write may have cached the cleared token
+            cache.invalidate(userId, connection.name());
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sling.auth.oauth_client.ClientConnection;
+import org.apache.sling.auth.oauth_client.spi.HttpTransport;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves the provider metadata and downloads the JWK sets of all OpenID Connect connections in the background,
+ * so that the first logins after a deployment or a configuration change do not pay for them.
+ *
+ * <p>Each connection is warmed up when it is registered, which includes re-registrations caused by configuration
+ * changes. The warm-up runs in parallel on a small thread pool and never blocks component activation. Connections
+ * whose warm-up fails are resolved on the first login, as without the warm-up.</p>
+ *
+ * <p>The component is only active when configured.</p>
+ */
+@Component(service = ConnectionWarmUpMBean.class, configurationPolicy = ConfigurationPolicy.REQUIRE,
+        property = "jmx.objectname=" + ConnectionWarmUpMBean.OBJECT_NAME)
+@Designate(ocd = ConnectionWarmUp.Config.class)
+public class ConnectionWarmUp implements ConnectionWarmUpMBean {
+
+    @ObjectClassDefinition(
+            name = "Apache Sling OpenID Connect Warm-Up",
+            description = "Resolves the provider metadata and JWK sets of the OpenID Connect connections when they are registered"
+    )
+    @interface Config {
+        @AttributeDefinition(name = "Threads",
+                description = "Maximum number of connections warmed up in parallel")
+        int threads() default 4;
+    }
+
+    enum Readiness {
+        PENDING, READY, FAILED
+    }
+
+    private record Status(@NotNull OidcConnectionImpl connection, @NotNull Readiness readiness) {
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final HttpTransport httpTransport;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, Status> statuses = new ConcurrentHashMap<>();
+
+    @Activate
+    public ConnectionWarmUp(@Reference HttpTransport httpTransport, Config config) {
+        this.httpTransport = httpTransport;
+        int threads = config.threads() > 0 ? config.threads() : 1;
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "sling-oidc-warm-up");
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        executor.shutdownNow();
+    }
+
+    @Reference(cardinality = ReferenceCardinality.MULTIPLE, policy = ReferencePolicy.DYNAMIC)
+    protected void bindConnection(ClientConnection connection) {
+        if (!(connection instanceof OidcConnectionImpl oidcConnection)) {
+            return;
+        }
+        Status pending = new Status(oidcConnection, Readiness.PENDING);
+        statuses.put(connection.name(), pending);
+        try {
+            executor.execute(() -> warmUp(pending));
+        } catch (RejectedExecutionException e) {
+            // deactivated concurrently
+            statuses.remove(connection.name(), pending);
+        }
+    }
+
+    protected void unbindConnection(ClientConnection connection) {
+        // a re-registered connection may already have replaced the status of the previous one
+        statuses.computeIfPresent(connection.name(), (name, status) -> status.connection() == connection ? null : status);
+    }
+
+    private void warmUp(@NotNull Status pending) {
+        OidcConnectionImpl connection = pending.connection();
+        long start = System.currentTimeMillis();
+        Readiness readiness;
+        try {
+            connection.warmUp(httpTransport);
+            logger.info("Warmed up connection {} in {} ms", connection.name(), System.currentTimeMillis() - start);
+            readiness = Readiness.READY;
+        } catch (Exception e) {
+            logger.warn("Failed to warm up connection {}, it will be resolved on the first login", connection.name(), e);
+            readiness = Readiness.FAILED;
+        }
+        statuses.replace(connection.name(), pending, new Status(connection, readiness));
+    }
+
+    /**
+     * @param connectionName the name of a connection
+     * @return the readiness of the connection, or null if it is not an OpenID Connect connection known to the warm-up
+     */
+    @Nullable Readiness readiness(@NotNull String connectionName) {
+        Status status = statuses.get(connectionName);
+        return status != null ? status.readiness() : null;
+    }
+
+    @Override
+    public String[] getReadyConnections() {
+        return connections(Readiness.READY);
+    }
+
+    @Override
+    public String[] getPendingConnections() {
+        return connections(Readiness.PENDING);
+    }
+
+    @Override
+    public String[] getFailedConnections() {
+        return connections(Readiness.FAILED);
+    }
+
+    private String[] connections(@NotNull Readiness readiness) {
+        return statuses.entrySet().stream()
+                .filter(entry -> entry.getValue().readiness() == readiness)
+                .map(Map.Entry::getKey)
+                .sorted()
+                .toArray(String[]::new);
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+/**
+ * Exposes the readiness of the OpenID Connect connections warmed up by {@link ConnectionWarmUp}.
+ */
+public interface ConnectionWarmUpMBean {
+
+    /**
+     * The object name under which the readiness is registered with the JMX whiteboard
+     */
+    String OBJECT_NAME = "org.apache.sling.auth.oauth_client:type=ConnectionWarmUp";
+
+    /**
+     * @return the names of the connections whose provider metadata and JWK set are cached
+     */
+    String[] getReadyConnections();
+
+    /**
+     * @return the names of the connections which are still being warmed up
+     */
+    String[] getPendingConnections();
+
+    /**
+     * @return the names of the connections whose warm-up failed, which are resolved on the first login instead
+     */
+    String[] getFailedConnections();
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Encrypts the keys with AES-GCM before passing them on to another store, so that the keys for signing
+ * login cookies cannot be read from a shared store without the secret.
+ * <p>
+ * The AES key is derived from a secret shared by all instances. Stored keys which are not encrypted are
+ * rejected, as anyone with write access to the shared store could otherwise plant keys they know. Only while
+ * migrating from unencrypted keys they are read as they are and encrypted with the next update.
+ */
+class EncryptingKeyRingStore implements KeyRingStore {
+
+    /**
+     * First byte of encrypted keys. It can never be mistaken for the first byte of unencrypted keys, which
+     * start with the current token number as <code>int</code>.
+     */
+    private static final byte ENCRYPTED_FORMAT_VERSION = 1;
+
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final String KEY_DERIVATION = "PBKDF2WithHmacSHA256";
+    private static final byte[] SALT = "sling.oauth.cookie-tokens".getBytes(StandardCharsets.UTF_8);
+    private static final int ITERATIONS = 210000;
+    private static final int KEY_LENGTH = 256;
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH = 128;
+
+    private final KeyRingStore delegate;
+    private final SecretKey key;
+    private final boolean migratePlaintext;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * The keys as last loaded or stored and their stored form, as the same keys are encrypted differently each time
+     */
+    private @Nullable byte[] lastKeys;
+    private @Nullable byte[] lastStored;
+
+    EncryptingKeyRingStore(@NotNull KeyRingStore delegate, @NotNull String secret) {
+        this(delegate, secret, false);
+    }
+
+    /**
+     * @param delegate the store for the encrypted keys
+     * @param secret the secret from which the AES key is derived
+     * @param migratePlaintext <code>true</code> to accept unencrypted keys, only while migrating to encrypted keys
+     */
+    EncryptingKeyRingStore(@NotNull KeyRingStore delegate, @NotNull String secret, boolean migratePlaintext) {
+        this.delegate = delegate;
+        this.key = deriveKey(secret);
+        this.migratePlaintext = migratePlaintext;
+    }
+
+    private static @NotNull SecretKey deriveKey(@NotNull String secret) {
+        try {
+            byte[] encoded = SecretKeyFactory.getInstance(KEY_DERIVATION)
+                    .generateSecret(new PBEKeySpec(secret.toCharArray(), SALT, ITERATIONS, KEY_LENGTH))
+                    .getEncoded();
+            return new SecretKeySpec(encoded, "AES");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to initialise " + KEY_DERIVATION, e);
+        }
+    }
+
+    @Override
+    public synchronized @Nullable byte[] load() throws IOException {
+        byte[] stored = delegate.load();
+        byte[] keys = stored != null ? decrypt(stored) : null;
+        lastKeys = keys;
+        lastStored = stored;
+        return keys;
+    }
+
+    @Override
+    public synchronized boolean store(@Nullable byte[] expected, @NotNull byte[] keys) throws IOException {
+        byte[] expectedStored = null;
+        if (expected != null) {
+            if (!Arrays.equals(expected, lastKeys)) {
+                // the keys were not read through this store
+                return false;
+            }
+            expectedStored = lastStored;
+        }
+        byte[] encrypted = encrypt(keys);
+        if (!delegate.store(expectedStored, encrypted)) {
+            return false;
+        }
+        lastKeys = keys;
+        lastStored = encrypted;
+        return true;
+    }
+
+    private @NotNull byte[] encrypt(@NotNull byte[] keys) throws IOException {
+        byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        try {
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, iv));
+            byte[] encrypted = cipher.doFinal(keys);
+            byte[] result = new byte[1 + IV_LENGTH + encrypted.length];
+            result[0] = ENCRYPTED_FORMAT_VERSION;
+            System.arraycopy(iv, 0, result, 1, IV_LENGTH);
+            System.arraycopy(encrypted, 0, result, 1 + IV_LENGTH, encrypted.length);
+            return result;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to encrypt keys", e);
+        }
+    }
+
+    private @NotNull byte[] decrypt(@NotNull byte[] stored) throws IOException {
+        if (stored.length == 0 || stored[0] != ENCRYPTED_FORMAT_VERSION) {
+            if (migratePlaintext) {
+                // stored before encryption was enabled
+                return stored;
+            }
+            throw new IOException("Rejecting unencrypted keys in " + delegate);
+        }
+        if (stored.length < 1 + IV_LENGTH) {
+            throw new IOException("Invalid encrypted keys in " + delegate);
+        }
+        try {
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, stored, 1, IV_LENGTH));
+            return cipher.doFinal(stored, 1 + IV_LENGTH, stored.length - 1 - IV_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to decrypt keys in " + delegate + ", the secret may differ between instances", e);
+        }
+    }
+
+    @Override
+    public boolean isShared() {
+        return delegate.isShared();
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    @Override
+    public String toString() {
+        return "encrypted " + delegate;
+    }
+}
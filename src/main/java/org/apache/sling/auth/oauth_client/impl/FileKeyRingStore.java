@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the keys in a local file, which is replaced atomically on each update.
+ */
+class FileKeyRingStore implements KeyRingStore {
+
+    private static final Logger log = LoggerFactory.getLogger(FileKeyRingStore.class);
+
+    /** The token file to persist the secure tokens */
+    private final File tokenFile;
+
+    /** A temporary file used to update the secure token file */
+    private final File tmpTokenFile;
+
+    FileKeyRingStore(@NotNull File tokenFile) {
+        this.tokenFile = tokenFile;
+        this.tmpTokenFile = new File(tokenFile + ".tmp");
+    }
+
+    @Override
+    public @Nullable byte[] load() throws IOException {
+        if (tokenFile.isFile() && tokenFile.canRead()) {
+            return Files.readAllBytes(tokenFile.toPath());
+        }
+        return null;
+    }
+
+    @Override
+    public boolean store(@Nullable byte[] expected, @NotNull byte[] keys) throws IOException {
+        File parent = tokenFile.getAbsoluteFile().getParentFile();
+        log.info("Token File {} parent {} ", tokenFile, parent);
+        if (!parent.exists()) {
+            parent.mkdirs();
+        }
+        Files.write(tmpTokenFile.toPath(), keys);
+        Files.move(tmpTokenFile.toPath(), tokenFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return tokenFile.toString();
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+
+import org.apache.sling.auth.oauth_client.spi.HttpTransport;
+import org.jetbrains.annotations.NotNull;
+
+import com.nimbusds.common.contenttype.ContentType;
+import com.nimbusds.jose.util.Resource;
+import com.nimbusds.jose.util.ResourceRetriever;
+import com.nimbusds.oauth2.sdk.http.HTTPRequest;
+import com.nimbusds.oauth2.sdk.http.HTTPResponse;
+
+/**
+ * Retrieves JOSE resources, such as JWK sets, using a {@link HttpTransport}.
+ */
+class HttpTransportResourceRetriever implements ResourceRetriever {
+
+    private final HttpTransport httpTransport;
+
+    HttpTransportResourceRetriever(@NotNull HttpTransport httpTransport) {
+        this.httpTransport = httpTransport;
+    }
+
+    @Override
+    public Resource retrieveResource(URL url) throws IOException {
+        HTTPRequest request;
+        try {
+            request = new HTTPRequest(HTTPRequest.Method.GET, url.toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid URL " + url, e);
+        }
+        HTTPResponse response = httpTransport.send(request);
+        if (response.getStatusCode() != HTTPResponse.SC_OK) {
+            throw new IOException(String.format("HTTP %d: %s", response.getStatusCode(), url));
+        }
+        ContentType contentType = response.getEntityContentType();
+        return new Resource(response.getContent(), contentType != null ? contentType.toString() : null);
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.sling.auth.oauth_client.spi.HttpTransport;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.KeySourceException;
+import com.nimbusds.jose.jwk.JWKMatcher;
+import com.nimbusds.jose.jwk.JWKSelector;
+import com.nimbusds.jose.jwk.source.JWKSource;
+import com.nimbusds.jose.jwk.source.JWKSourceBuilder;
+import com.nimbusds.jose.proc.JWSVerificationKeySelector;
+import com.nimbusds.jose.proc.SecurityContext;
+import com.nimbusds.oauth2.sdk.id.ClientID;
+import com.nimbusds.oauth2.sdk.id.Issuer;
+import com.nimbusds.openid.connect.sdk.validators.IDTokenValidator;
+
+/**
+ * Holds the {@link IDTokenValidator} of a single connection.
+ *
+ * <p>The validator is backed by a caching {@link JWKSource}, so that the JWK set is not downloaded
+ * for each login. The cached JWK set is refreshed ahead of its expiry and, rate limited, whenever an
+ * ID token is signed with a key id which is not part of the cached set. The validator is only rebuilt
+ * when the issuer, client id or JWK set URL of the connection change.</p>
+ */
+class IdTokenValidatorCache implements Closeable {
+
+    private static final JWSAlgorithm JWS_ALGORITHM = JWSAlgorithm.RS256; //TODO: Read from config
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final long timeToLive;
+    private final long refreshAheadTime;
+    private final long minRefreshInterval;
+    private final AtomicReference<CachedValidator> current = new AtomicReference<>();
+
+    /**
+     * @param timeToLive the time in milliseconds for which a downloaded JWK set is cached
+     * @param refreshAheadTime the time in milliseconds before the expiry of the cached JWK set at which it
+     *                         is refreshed in the background, 0 to disable refreshing ahead
+     * @param minRefreshInterval the minimum time in milliseconds between two downloads of the JWK set
+     */
+    IdTokenValidatorCache(long timeToLive, long refreshAheadTime, long minRefreshInterval) {
+        this.timeToLive = timeToLive > 0 ? timeToLive : JWKSourceBuilder.DEFAULT_CACHE_TIME_TO_LIVE;
+        this.refreshAheadTime = refreshAheadTime;
+        this.minRefreshInterval = minRefreshInterval > 0 ? minRefreshInterval : JWKSourceBuilder.DEFAULT_RATE_LIMIT_MIN_INTERVAL;
+    }
+
+    /**
+     * Returns the validator for the given connection parameters, creating it if needed.
+     *
+     * @param issuer the expected issuer
+     * @param clientId the client id, which is the expected audience
+     * @param jwkSetURL the URL of the provider's JWK set
+     * @param httpTransport the transport used to download the JWK set, if a new validator is created
+     * @return the validator
+     * @throws MalformedURLException if the JWK set URL is not a valid URL
+     */
+    @NotNull IDTokenValidator get(@NotNull String issuer, @NotNull String clientId, @NotNull URI jwkSetURL,
+                                  @NotNull HttpTransport httpTransport) throws MalformedURLException {
+        return getCached(issuer, clientId, jwkSetURL, httpTransport).validator();
+    }
+
+    /**
+     * Creates the validator for the given connection parameters if needed, and downloads the JWK set into its cache
+     * unless it is already cached.
+     *
+     * @param issuer the expected issuer
+     * @param clientId the client id, which is the expected audience
+     * @param jwkSetURL the URL of the provider's JWK set
+     * @param httpTransport the transport used to download the JWK set
+     * @throws IOException if the JWK set URL is not a valid URL or the JWK set could not be retrieved
+     */
+    void prefetch(@NotNull String issuer, @NotNull String clientId, @NotNull URI jwkSetURL,
+                  @NotNull HttpTransport httpTransport) throws IOException {
+        CachedValidator cached = getCached(issuer, clientId, jwkSetURL, httpTransport);
+        try {
+            cached.jwkSource().get(new JWKSelector(new JWKMatcher.Builder().build()), null);
+        } catch (KeySourceException e) {
+            throw new IOException("Failed to retrieve the JWK set from " + jwkSetURL, e);
+        }
+    }
+
+    private @NotNull CachedValidator getCached(@NotNull String issuer, @NotNull String clientId, @NotNull URI jwkSetURL,
+                                               @NotNull HttpTransport httpTransport) throws MalformedURLException {
+        Key key = new Key(issuer, clientId, jwkSetURL);
+        while (true) {
+            CachedValidator cached = current.get();
+            if (cached != null && cached.key().equals(key)) {
+                return cached;
+            }
+
+            JWKSource<SecurityContext> jwkSource = newJWKSource(jwkSetURL, httpTransport);
+            IDTokenValidator validator = new IDTokenValidator(new Issuer(issuer), new ClientID(clientId),
+                    new JWSVerificationKeySelector<>(JWS_ALGORITHM, jwkSource), null);
+            CachedValidator created = new CachedValidator(key, validator, jwkSource);
+            if (current.compareAndSet(cached, created)) {
+                logger.debug("Created ID token validator for issuer {} with JWK set {}", issuer, jwkSetURL);
+                close(cached);
+                return created;
+            }
+            // another thread replaced the validator concurrently
+            close(created);
+        }
+    }
+
+    @Override
+    public void close() {
+        close(current.getAndSet(null));
+    }
+
+    private @NotNull JWKSource<SecurityContext> newJWKSource(@NotNull URI jwkSetURL, @NotNull HttpTransport httpTransport) throws MalformedURLException {
+        JWKSourceBuilder<SecurityContext> builder = JWKSourceBuilder.<SecurityContext>create(jwkSetURL.toURL(), new HttpTransportResourceRetriever(httpTransport))
+                .cache(timeToLive, JWKSourceBuilder.DEFAULT_CACHE_REFRESH_TIMEOUT)
+                .rateLimited(Math.min(minRefreshInterval, timeToLive));
+        // the refresh must complete before the cached JWK set expires
+        if (refreshAheadTime > 0 && refreshAheadTime + JWKSourceBuilder.DEFAULT_CACHE_REFRESH_TIMEOUT < timeToLive) {
+            builder.refreshAheadCache(refreshAheadTime, true);
+        } else {
+            builder.refreshAheadCache(false);
+        }
+        return builder.build();
+    }
+
+    private void close(@Nullable CachedValidator cached) {
+        if (cached != null && cached.jwkSource() instanceof Closeable closeable) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                logger.debug("Failed to close JWK source for {}", cached.key().jwkSetURL(), e);
+            }
+        }
+    }
+
+    private record Key(@NotNull String issuer, @NotNull String clientId, @NotNull URI jwkSetURL) {
+    }
+
+    private record CachedValidator(@NotNull Key key, @NotNull IDTokenValidator validator, @NotNull JWKSource<SecurityContext> jwkSource) {
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bulkhead and circuit breaker for the requests to a single identity provider.
+ * <p>
+ * The number of concurrent requests is bounded, further requests wait for a permit for a limited time. After a
+ * configured number of consecutive failures the circuit opens and requests are rejected without contacting the
+ * provider. Once the open time has elapsed, a single trial request is let through, which either closes the circuit
+ * again or keeps it open for another period.
+ */
+class IdentityProviderGuard implements IdentityProviderGuardMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(IdentityProviderGuard.class);
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String provider;
+    private final int maxConcurrentRequests;
+    private final Semaphore permits;
+    private final long maxWaitMillis;
+    private final int failureThreshold;
+    private final long openTimeMillis;
+
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder shortCircuited = new LongAdder();
+
+    // guarded by this
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean trialInProgress;
+
+    /**
+     * @param provider the scheme and authority of the identity provider
+     * @param maxConcurrentRequests the maximum number of concurrent requests
+     * @param maxWaitMillis the maximum time to wait for a request permit
+     * @param failureThreshold the number of consecutive failures after which the circuit opens, 0 to never open it
+     * @param openTimeMillis the time for which the circuit stays open before a trial request is let through
+     */
+    IdentityProviderGuard(@NotNull String provider, int maxConcurrentRequests, long maxWaitMillis,
+                          int failureThreshold, long openTimeMillis) {
+        this.provider = provider;
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.permits = new Semaphore(maxConcurrentRequests);
+        this.maxWaitMillis = maxWaitMillis;
+        this.failureThreshold = failureThreshold;
+        this.openTimeMillis = openTimeMillis;
+    }
+
+    /**
+     * Acquires a permit for a request to the identity provider, which must be returned with {@link #release(boolean)}.
+     *
+     * @throws IdentityProviderUnavailableException if the circuit is open or no permit became available in time
+     * @throws InterruptedException if interrupted while waiting for a permit
+     */
+    void acquire() throws InterruptedException {
+        if (!allowRequest()) {
+            shortCircuited.increment();
+            throw new IdentityProviderUnavailableException(
+                    String.format("Identity provider %s is unavailable, the circuit breaker is open", provider));
+        }
+        boolean acquired = false;
+        try {
+            acquired = permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } finally {
+            if (!acquired) {
+                abandonTrial();
+            }
+        }
+        if (!acquired) {
+            rejected.increment();
+            throw new IdentityProviderUnavailableException(
+                    String.format("Too many concurrent requests to %s", provider));
+        }
+    }
+
+    /**
+     * Returns a permit acquired with {@link #acquire()} and records the outcome of the request.
+     *
+     * @param success false if the request failed with an I/O error or a server error response
+     */
+    void release(boolean success) {
+        permits.release();
+        if (success) {
+            onSuccess();
+        } else {
+            failed.increment();
+            onFailure();
+        }
+    }
+
+    private synchronized boolean allowRequest() {
+        switch (state) {
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt < openTimeMillis) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                trialInProgress = true;
+                return true;
+            case HALF_OPEN:
+                if (trialInProgress) {
+                    return false;
+                }
+                trialInProgress = true;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    private synchronized void abandonTrial() {
+        if (state == State.HALF_OPEN) {
+            trialInProgress = false;
+        }
+    }
+
+    private synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        trialInProgress = false;
+        if (state != State.CLOSED) {
+            log.info("Identity provider {} is available again, closing the circuit breaker", provider);
+            state = State.CLOSED;
+        }
+    }
+
+    private synchronized void onFailure() {
+        consecutiveFailures++;
+        trialInProgress = false;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failureThreshold > 0 && consecutiveFailures >= failureThreshold)) {
+            log.warn("Identity provider {} failed {} consecutive requests, opening the circuit breaker for {} ms",
+                    provider, consecutiveFailures, openTimeMillis);
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    @Override
+    public synchronized String getState() {
+        return state.name();
+    }
+
+    @Override
+    public int getActiveRequests() {
+        return maxConcurrentRequests - permits.availablePermits();
+    }
+
+    @Override
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    @Override
+    public long getFailedRequests() {
+        return failed.sum();
+    }
+
+    @Override
+    public long getRejectedRequests() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getShortCircuitedRequests() {
+        return shortCircuited.sum();
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+/**
+ * Exposes the state of the concurrency limit and circuit breaker for the requests to a single identity provider.
+ */
+public interface IdentityProviderGuardMBean {
+
+    /**
+     * The object name prefix under which the guards are registered with the JMX whiteboard, followed by the
+     * quoted scheme and authority of the identity provider
+     */
+    String OBJECT_NAME_PREFIX = "org.apache.sling.auth.oauth_client:type=IdentityProvider,name=";
+
+    /**
+     * @return the state of the circuit breaker, one of CLOSED, OPEN or HALF_OPEN
+     */
+    String getState();
+
+    /**
+     * @return the number of requests currently in progress
+     */
+    int getActiveRequests();
+
+    /**
+     * @return the number of failed requests since the last successful request
+     */
+    int getConsecutiveFailures();
+
+    /**
+     * @return the number of requests which failed with an I/O error or a server error response
+     */
+    long getFailedRequests();
+
+    /**
+     * @return the number of requests rejected because too many requests were in progress
+     */
+    long getRejectedRequests();
+
+    /**
+     * @return the number of requests rejected because the circuit breaker was open
+     */
+    long getShortCircuitedRequests();
+}
@@ -61,6 +61,7 @@ public class JcrUserHomeOAuthTokenStore implements OAuthTokenStore {
         try {
             User user = adaptToUser(resolver);
             Value[] expiresAt = user.getProperty(propertyPath(connection, PROPERTY_NAME_EXPIRES_AT));
+            long expiresAtMillis = 0;
             if (expiresAt != null && expiresAt.length == 1 && expiresAt[0].getType() == PropertyType.DATE) {
                 Calendar expiresCal = expiresAt[0].getDate();
                 if (expiresCal.before(Calendar.getInstance())) {
@@ -69,15 +70,17 @@ public class JcrUserHomeOAuthTokenStore implements OAuthTokenStore {
                     // refresh token is present, mark as expired
                     return new OAuthToken(TokenState.EXPIRED, null);
                 }
+                expiresAtMillis = expiresCal.getTimeInMillis();
             }
 
-            return getToken(connection, user, PROPERTY_NAME_ACCESS_TOKEN);
+            return getToken(connection, user, PROPERTY_NAME_ACCESS_TOKEN, expiresAtMillis);
         } catch (RepositoryException e) {
             throw new OAuthException(e);
         }
     }
 
-    private @NotNull OAuthToken getToken(@NotNull ClientConnection connection, @NotNull User user, @NotNull String propertyName) throws RepositoryException {
+    private @NotNull OAuthToken getToken(@NotNull ClientConnection connection, @NotNull User user, @NotNull String propertyName,
+                                         long expiresAt) throws RepositoryException {
 
         Value[] tokenValue = user.getProperty(propertyPath(connection, propertyName));
         if ( tokenValue == null )
@@ -88,14 +91,14 @@ public class JcrUserHomeOAuthTokenStore implements OAuthTokenStore {
 
         String encryptedValue = tokenValue[0].getString();
         
-        return new OAuthToken(TokenState.VALID, cryptoService.decrypt(encryptedValue));
+        return new OAuthToken(TokenState.VALID, cryptoService.decrypt(encryptedValue), expiresAt);
     }
     
     @Override
     public @NotNull OAuthToken getRefreshToken(@NotNull ClientConnection connection, @NotNull ResourceResolver resolver) {
         try {
             User user = adaptToUser(resolver);
-            return getToken(connection, user, PROPERTY_NAME_REFRESH_TOKEN);
+            return getToken(connection, user, PROPERTY_NAME_REFRESH_TOKEN, 0);
         } catch (RepositoryException e) {
             throw new OAuthException(e);
         }
@@ -0,0 +1,349 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.ObjectName;
+
+import org.apache.sling.auth.oauth_client.spi.HttpTransport;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.nimbusds.common.contenttype.ContentType;
+import com.nimbusds.oauth2.sdk.ParseException;
+import com.nimbusds.oauth2.sdk.http.HTTPRequest;
+import com.nimbusds.oauth2.sdk.http.HTTPResponse;
+
+/**
+ * The default {@link HttpTransport}, based on the {@link HttpClient} of the JDK.
+ *
+ * <p>Connections are kept alive and shared between requests, and HTTP/2 is used when the provider supports it.
+ * The number of concurrent requests to a single provider, and with that the number of connections, is bounded.
+ * A circuit breaker per provider rejects requests without contacting the provider after repeated failures, see
+ * {@link IdentityProviderGuard}. The state of each provider's guard is exposed as an MBean.</p>
+ *
+ * <p>The connect and read timeouts set on a request take precedence over the configured ones. As the JDK client
+ * only supports a connect timeout for all requests, the connect timeout of a request is added to the timeout for
+ * the response instead, which also covers establishing the connection.</p>
+ */
+@Component(service = HttpTransport.class)
+@Designate(ocd = JdkHttpTransport.Config.class)
+public class JdkHttpTransport implements HttpTransport {
+
+    @ObjectClassDefinition(
+            name = "Apache Sling OAuth HTTP Transport",
+            description = "HTTP client used for the requests to the OAuth and OpenID Connect providers"
+    )
+    @interface Config {
+        @AttributeDefinition(name = "Connect Timeout",
+                description = "Timeout in milliseconds for establishing a connection")
+        long connectTimeout() default 5000;
+
+        @AttributeDefinition(name = "Read Timeout",
+                description = "Timeout in milliseconds for receiving the response after the request was sent")
+        long readTimeout() default 10000;
+
+        @AttributeDefinition(name = "Maximum Connections per Host",
+                description = "Maximum number of concurrent requests to a single host. Further requests wait for " +
+                        "at most the connect timeout.")
+        int maxConnectionsPerHost() default 20;
+
+        @AttributeDefinition(name = "Circuit Breaker Failure Threshold",
+                description = "Number of consecutive failed requests to a host after which further requests are " +
+                        "rejected without contacting it. Connection errors, timeouts and server error responses " +
+                        "count as failures. 0 disables the circuit breaker.")
+        int circuitBreakerFailureThreshold() default 5;
+
+        @AttributeDefinition(name = "Circuit Breaker Open Time",
+                description = "Time in milliseconds for which requests to a failing host are rejected before a " +
+                        "single trial request is let through")
+        long circuitBreakerOpenTime() default 30000;
+
+        @AttributeDefinition(name = "Maximum Response Size",
+                description = "Maximum size in bytes of a response body. Larger responses are rejected.")
+        int maxResponseSize() default DEFAULT_MAX_RESPONSE_SIZE;
+    }
+
+    static final int DEFAULT_MAX_RESPONSE_SIZE = 1024 * 1024;
+
+    // headers set by the HttpClient itself
+    private static final Set<String> RESTRICTED_HEADERS = Set.of("connection", "content-length", "expect", "host", "upgrade");
+
+    private static final String CONTENT_TYPE = "Content-Type";
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final ExecutorService executor;
+    private volatile @Nullable HttpClient client;
+    private final Duration connectTimeout;
+    private final Duration readTimeout;
+    private final int maxConnectionsPerHost;
+    private final int maxResponseSize;
+    private final int circuitBreakerFailureThreshold;
+    private final long circuitBreakerOpenTime;
+    private final @Nullable BundleContext bundleContext;
+    private final ConcurrentMap<String, IdentityProviderGuard> guards = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ServiceRegistration<IdentityProviderGuardMBean>> guardRegistrations = new ConcurrentHashMap<>();
+
+    @Activate
+    public JdkHttpTransport(Config config, BundleContext bundleContext) {
+        this(config.connectTimeout(), config.readTimeout(), config.maxConnectionsPerHost(),
+                config.circuitBreakerFailureThreshold(), config.circuitBreakerOpenTime(), config.maxResponseSize(), bundleContext);
+    }
+
+    JdkHttpTransport(long connectTimeout, long readTimeout, int maxConnectionsPerHost) {
+        this(connectTimeout, readTimeout, maxConnectionsPerHost, 0, 0, DEFAULT_MAX_RESPONSE_SIZE, null);
+    }
+
+    JdkHttpTransport(long connectTimeout, long readTimeout, int maxConnectionsPerHost,
+                     int circuitBreakerFailureThreshold, long circuitBreakerOpenTime, int maxResponseSize,
+                     @Nullable BundleContext bundleContext) {
+        this.connectTimeout = Duration.ofMillis(connectTimeout);
+        this.readTimeout = Duration.ofMillis(readTimeout);
+        this.maxConnectionsPerHost = maxConnectionsPerHost > 0 ? maxConnectionsPerHost : Integer.MAX_VALUE;
+        this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+        this.circuitBreakerOpenTime = circuitBreakerOpenTime;
+        this.maxResponseSize = maxResponseSize > 0 ? maxResponseSize : Integer.MAX_VALUE;
+        this.bundleContext = bundleContext;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "sling-oauth-http-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(this.connectTimeout)
+                .executor(executor)
+                .build();
+    }
+
+    @Deactivate
+    void deactivate() {
+        guardRegistrations.values().forEach(ServiceRegistration::unregister);
+        guardRegistrations.clear();
+        HttpClient httpClient = client;
+        client = null;
+        // the HttpClient can only be closed as of Java 21, before that its threads end once it is unreachable
+        if (httpClient instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) httpClient).close();
+            } catch (Exception e) {
+                logger.debug("Failed to close HTTP client", e);
+            }
+        }
+        executor.shutdownNow();
+    }
+
+    @Override
+    public @NotNull HTTPResponse send(@NotNull HTTPRequest request) throws IOException {
+        URI uri = request.getURI();
+        // rejects relative URIs in the same way as requests sent by the Nimbus SDK
+        uri.toURL();
+
+        HttpClient httpClient = client;
+        if (httpClient == null) {
+            throw new IOException("HTTP transport is deactivated");
+        }
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri).timeout(timeout(request));
+        request.getHeaderMap().forEach((name, values) -> {
+            if (!RESTRICTED_HEADERS.contains(name.toLowerCase())) {
+                values.forEach(value -> builder.header(name, value));
+            }
+        });
+        String body = request.getBody();
+        builder.method(request.getMethod().name(),
+                body != null ? HttpRequest.BodyPublishers.ofString(body) : HttpRequest.BodyPublishers.noBody());
+
+        IdentityProviderGuard guard = guard(uri.getScheme() + "://" + uri.getAuthority());
+        try {
+            guard.acquire();
+            boolean success = false;
+            try {
+                HTTPResponse response = toHTTPResponse(httpClient.send(builder.build(), this::boundedBody));
+                success = response.getStatusCode() < 500;
+                return response;
+            } finally {
+                guard.release(success);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while sending request to " + uri);
+        } catch (ConnectException e) {
+            // report unknown hosts like HttpURLConnection does
+            if (e.getCause() instanceof UnresolvedAddressException) {
+                UnknownHostException unknownHost = new UnknownHostException(uri.getHost());
+                unknownHost.initCause(e);
+                throw unknownHost;
+            }
+            throw e;
+        }
+    }
+
+    private @NotNull Duration timeout(@NotNull HTTPRequest request) {
+        Duration timeout = request.getReadTimeout() > 0 ? Duration.ofMillis(request.getReadTimeout()) : readTimeout;
+        if (request.getConnectTimeout() > 0) {
+            timeout = timeout.plusMillis(request.getConnectTimeout());
+        }
+        return timeout;
+    }
+
+    private @NotNull HttpResponse.BodySubscriber<String> boundedBody(@NotNull HttpResponse.ResponseInfo responseInfo) {
+        Charset charset = StandardCharsets.UTF_8;
+        String contentType = responseInfo.headers().firstValue(CONTENT_TYPE).orElse(null);
+        if (contentType != null) {
+            try {
+                Charset declared = ContentType.parse(contentType).getCharset();
+                if (declared != null) {
+                    charset = declared;
+                }
+            } catch (java.text.ParseException | IllegalArgumentException e) {
+                // reported once the response is converted
+            }
+        }
+        return new BoundedStringSubscriber(maxResponseSize, charset);
+    }
+
+    @NotNull IdentityProviderGuard guard(@NotNull String provider) {
+        return guards.computeIfAbsent(provider, key -> {
+            IdentityProviderGuard guard = new IdentityProviderGuard(key, maxConnectionsPerHost, connectTimeout.toMillis(),
+                    circuitBreakerFailureThreshold, circuitBreakerOpenTime);
+            if (bundleContext != null) {
+                ServiceRegistration<IdentityProviderGuardMBean> registration = bundleContext.registerService(IdentityProviderGuardMBean.class,
+                        guard, new Hashtable<>(Map.of("jmx.objectname", IdentityProviderGuardMBean.OBJECT_NAME_PREFIX + ObjectName.quote(key))));
+                if (registration != null) {
+                    guardRegistrations.put(key, registration);
+                }
+            }
+            return guard;
+        });
+    }
+
+    private @NotNull HTTPResponse toHTTPResponse(@NotNull HttpResponse<String> response) {
+        HTTPResponse httpResponse = new HTTPResponse(response.statusCode());
+        for (Map.Entry<String, List<String>> header : response.headers().map().entrySet()) {
+            if (header.getKey().startsWith(":") || header.getKey().equalsIgnoreCase(CONTENT_TYPE)) {
+                continue;
+            }
+            httpResponse.setHeader(header.getKey(), header.getValue().toArray(new String[0]));
+        }
+        String contentType = response.headers().firstValue(CONTENT_TYPE).orElse(null);
+        if (contentType != null) {
+            try {
+                httpResponse.setContentType(contentType);
+            } catch (ParseException e) {
+                logger.debug("Ignoring invalid content type {} in response from {}", contentType, response.uri());
+            }
+        }
+        httpResponse.setContent(response.body());
+        return httpResponse;
+    }
+
+    /**
+     * Collects the response body as a string, but fails as soon as it exceeds the maximum size instead of
+     * buffering all of it.
+     */
+    private static final class BoundedStringSubscriber implements HttpResponse.BodySubscriber<String> {
+
+        private final int maxSize;
+        private final Charset charset;
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+        private Flow.Subscription subscription;
+
+        BoundedStringSubscriber(int maxSize, @NotNull Charset charset) {
+            this.maxSize = maxSize;
+            this.charset = charset;
+        }
+
+        @Override
+        public CompletionStage<String> getBody() {
+            return result;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> buffers) {
+            if (result.isDone()) {
+                return;
+            }
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.remaining() > maxSize - body.size()) {
+                    subscription.cancel();
+                    result.completeExceptionally(new IOException("Response exceeds the maximum size of " + maxSize + " bytes"));
+                    return;
+                }
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                body.write(bytes, 0, bytes.length);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            result.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            result.complete(body.toString(charset));
+        }
+    }
+}
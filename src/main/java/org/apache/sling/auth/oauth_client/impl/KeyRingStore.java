@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import java.io.IOException;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Persistence for the ring of keys used by the {@link TokenStore} to sign login cookies.
+ * <p>
+ * The keys are handled as an opaque serialized blob. Stores which are {@link #isShared() shared}
+ * between instances allow all instances to validate cookies issued by any of them; the
+ * {@link TokenStore} then synchronizes the keys in the background and coordinates rotations using
+ * {@link #store(byte[], byte[])}.
+ */
+interface KeyRingStore {
+
+    /**
+     * @return the stored keys or <code>null</code> if no keys have been stored yet
+     * @throws IOException if the keys cannot be read
+     */
+    @Nullable byte[] load() throws IOException;
+
+    /**
+     * Stores the keys, provided that the currently stored keys match the expected ones. Stores which
+     * are not shared may store the keys unconditionally.
+     *
+     * @param expected the keys which are expected to be stored, <code>null</code> if none
+     * @param keys the keys to store
+     * @return <code>true</code> if the keys were stored, <code>false</code> if the stored keys did not match
+     * @throws IOException if the keys cannot be written
+     */
+    boolean store(@Nullable byte[] expected, @NotNull byte[] keys) throws IOException;
+
+    /**
+     * @return <code>true</code> if the keys are shared with other instances
+     */
+    default boolean isShared() {
+        return false;
+    }
+
+    /**
+     * Releases the resources held by this store.
+     */
+    default void close() {
+    }
+}
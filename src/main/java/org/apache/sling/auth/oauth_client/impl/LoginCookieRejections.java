@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts the login cookies rejected by the {@link TokenStore}, per reason.
+ * <p>
+ * Rejected cookies are logged at most once per {@link #LOG_INTERVAL_MSEC}, together with the number of
+ * rejections since the last message, so that clients replaying invalid cookies cannot flood the log.
+ * The cookie values are never logged.
+ */
+class LoginCookieRejections implements LoginCookieRejectionsMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(LoginCookieRejections.class);
+
+    static final long LOG_INTERVAL_MSEC = 60 * 1000L;
+
+    enum Reason {
+        INVALID_FORMAT("has invalid format"),
+        UNKNOWN_KEY("points to an unknown token number"),
+        EXPIRED("has expired"),
+        INVALID_SIGNATURE("has an invalid signature");
+
+        private final String description;
+
+        Reason(String description) {
+            this.description = description;
+        }
+    }
+
+    private final LongAdder[] counters = new LongAdder[Reason.values().length];
+
+    private final LongAdder suppressed = new LongAdder();
+
+    private final AtomicLong nextLog = new AtomicLong();
+
+    LoginCookieRejections() {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a rejected login cookie.
+     *
+     * @param reason the reason for rejecting the cookie
+     */
+    void reject(@NotNull Reason reason) {
+        counters[reason.ordinal()].increment();
+
+        long now = System.currentTimeMillis();
+        long next = nextLog.get();
+        if (now >= next && nextLog.compareAndSet(next, now + LOG_INTERVAL_MSEC)) {
+            long suppressedRejections = suppressed.sumThenReset();
+            if (suppressedRejections > 0) {
+                log.warn("AuthNCookie value {}, {} more cookies were rejected since the last message",
+                        reason.description, suppressedRejections);
+            } else {
+                log.warn("AuthNCookie value {}", reason.description);
+            }
+        } else {
+            suppressed.increment();
+            log.debug("AuthNCookie value {}", reason.description);
+        }
+    }
+
+    long count(@NotNull Reason reason) {
+        return counters[reason.ordinal()].sum();
+    }
+
+    @Override
+    public long getInvalidFormat() {
+        return count(Reason.INVALID_FORMAT);
+    }
+
+    @Override
+    public long getUnknownKey() {
+        return count(Reason.UNKNOWN_KEY);
+    }
+
+    @Override
+    public long getExpired() {
+        return count(Reason.EXPIRED);
+    }
+
+    @Override
+    public long getInvalidSignature() {
+        return count(Reason.INVALID_SIGNATURE);
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+/**
+ * Exposes the number of rejected login cookies per reason, since the login cookie manager was activated.
+ */
+public interface LoginCookieRejectionsMBean {
+
+    /**
+     * The object name under which the counters are registered with the JMX whiteboard
+     */
+    String OBJECT_NAME = "org.apache.sling.auth.oauth_client:type=LoginCookieRejections";
+
+    /**
+     * @return the number of cookies which could not be parsed
+     */
+    long getInvalidFormat();
+
+    /**
+     * @return the number of cookies signed with a key which is not part of the key ring
+     */
+    long getUnknownKey();
+
+    /**
+     * @return the number of expired cookies
+     */
+    long getExpired();
+
+    /**
+     * @return the number of cookies with a signature not matching their contents
+     */
+    long getInvalidSignature();
+}
@@ -39,6 +39,7 @@ import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.apache.sling.auth.core.AuthConstants;
 import org.apache.sling.auth.oauth_client.ClientConnection;
+import org.apache.sling.auth.oauth_client.spi.HttpTransport;
 import org.apache.sling.servlets.annotations.SlingServletPaths;
 import org.jetbrains.annotations.NotNull;
 import org.osgi.service.component.annotations.Activate;
@@ -56,11 +57,8 @@ import com.nimbusds.oauth2.sdk.ErrorResponse;
 import com.nimbusds.oauth2.sdk.ParseException;
 import com.nimbusds.oauth2.sdk.TokenRequest;
 import com.nimbusds.oauth2.sdk.TokenResponse;
-import com.nimbusds.oauth2.sdk.auth.ClientSecretBasic;
-import com.nimbusds.oauth2.sdk.auth.Secret;
 import com.nimbusds.oauth2.sdk.http.HTTPRequest;
 import com.nimbusds.oauth2.sdk.http.HTTPResponse;
-import com.nimbusds.oauth2.sdk.id.ClientID;
 
 @Component(service = { Servlet.class },
     property = { AuthConstants.AUTH_REQUIREMENTS +"=" + OAuthCallbackServlet.PATH }
@@ -77,6 +75,7 @@ public class OAuthCallbackServlet extends SlingAllMethodsServlet {
     private final Map<String, ClientConnection> connections;
     private final OAuthTokenStore tokenStore;
     private final OAuthStateManager stateManager;
+    private final HttpTransport httpTransport;
 
     static String getCallbackUri(HttpServletRequest request) {
         String portFragment = "";
@@ -108,12 +107,14 @@ public class OAuthCallbackServlet extends SlingAllMethodsServlet {
 
     @Activate
     public OAuthCallbackServlet(@Reference(policyOption = GREEDY) List<ClientConnection> connections, 
-            @Reference OAuthTokenStore tokenStore,
-            @Reference OAuthStateManager stateManager) {
+            @Reference(policyOption = GREEDY) OAuthTokenStore tokenStore,
+            @Reference OAuthStateManager stateManager,
+            @Reference(policyOption = GREEDY) HttpTransport httpTransport) {
         this.connections = connections.stream()
                 .collect(Collectors.toMap( ClientConnection::name, Function.identity()));
         this.tokenStore = tokenStore;
         this.stateManager = stateManager;
+        this.httpTransport = httpTransport;
     }
 
     @Override
@@ -174,16 +175,12 @@ public class OAuthCallbackServlet extends SlingAllMethodsServlet {
             }
             ResolvedOAuthConnection conn = ResolvedOAuthConnection.resolve(connection);
 
-            ClientID clientId = new ClientID(conn.clientId());
-            Secret clientSecret = new Secret(conn.clientSecret());
-            ClientSecretBasic clientCredentials = new ClientSecretBasic(clientId, clientSecret);
-            
             AuthorizationCode code = new AuthorizationCode(authCode);
             
-            URI tokenEndpoint = new URI(conn.tokenEndpoint());
+            URI tokenEndpoint = conn.tokenEndpointURI();
             TokenRequest tokenRequest = new TokenRequest.Builder(
                 tokenEndpoint,
-                clientCredentials,
+                conn.clientCredentials(),
                 new AuthorizationCodeGrant(code, new URI(getCallbackUri(request)))
             ).build();
             
@@ -192,7 +189,7 @@ public class OAuthCallbackServlet extends SlingAllMethodsServlet {
             // https://docs.github.com/en/apps/oauth-apps/building-oauth-apps/authorizing-oauth-apps#2-users-are-redirected-back-to-your-site-by-github
             // see also https://bitbucket.org/connect2id/oauth-2.0-sdk-with-openid-connect-extensions/issues/107/support-application-x-www-form-urlencoded
             httpRequest.setAccept("application/json");
-            HTTPResponse httpResponse = httpRequest.send();
+            HTTPResponse httpResponse = httpTransport.send(httpRequest);
             
             TokenResponse tokenResponse = TokenResponse.parse(httpResponse);
             
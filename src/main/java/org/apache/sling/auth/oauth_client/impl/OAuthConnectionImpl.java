@@ -16,8 +16,11 @@
  */
 package org.apache.sling.auth.oauth_client.impl;
 
+import java.util.List;
+
 import org.apache.sling.auth.oauth_client.ClientConnection;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.metatype.annotations.AttributeDefinition;
@@ -44,10 +47,24 @@ public class OAuthConnectionImpl implements ClientConnection {
     }
 
     private final Config cfg;
+    private final ResolvedOAuthConnection resolved;
 
     @Activate
     public OAuthConnectionImpl(@NotNull Config cfg) {
         this.cfg = cfg;
+        this.resolved = new ResolvedOAuthConnection(cfg.name(), cfg.authorizationEndpoint(), cfg.tokenEndpoint(),
+                cfg.clientId(), cfg.clientSecret(), listOf(cfg.scopes()), listOf(cfg.additionalAuthorizationParameters()));
+    }
+
+    private static @NotNull List<String> listOf(@Nullable String[] values) {
+        return values != null ? List.of(values) : List.of();
+    }
+
+    /**
+     * @return the snapshot of this connection, which is resolved once as the configuration never changes
+     */
+    @NotNull ResolvedOAuthConnection resolved() {
+        return resolved;
     }
     
     @Override
@@ -104,12 +104,12 @@ public class OAuthEntryPointServlet extends SlingAllMethodsServlet {
 
         // The client ID provisioned by the OpenID provider when
         // the client was registered
-        ClientID clientID = new ClientID(conn.clientId());
+        ClientID clientID = conn.clientID();
         
         String redirect = request.getParameter(OAuthStateManager.PARAMETER_NAME_REDIRECT);
         String perRequestKey = new Identifier().getValue();
         State state = stateManager.toNimbusState(new OAuthState(perRequestKey, connection.name(), redirect));
 
-        return RedirectHelper.buildRedirectTarget(clientID, conn.authorizationEndpoint(), conn.scopes(), conn.additionalAuthorizationParameters(), state, perRequestKey, redirectUri);
+        return RedirectHelper.buildRedirectTarget(clientID, conn.authorizationEndpointURI(), conn.scopes(), conn.additionalAuthorizationParameters(), state, perRequestKey, redirectUri);
     }
 }
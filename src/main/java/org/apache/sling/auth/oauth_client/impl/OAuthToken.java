@@ -29,18 +29,28 @@ public class OAuthToken {
 
     private final TokenState state;
     private final String value;
+    private final long expiresAt;
 
     public OAuthToken(@NotNull TokenState state, @Nullable String value) {
+        this(state, value, 0);
+    }
+
+    /**
+     * @param state the token state
+     * @param value the token value
+     * @param expiresAt the time at which the token expires, in milliseconds since the epoch, or 0 if unknown
+     */
+    public OAuthToken(@NotNull TokenState state, @Nullable String value, long expiresAt) {
         this.state = state;
         if (TokenState.VALID == state && value == null) {
             throw new IllegalArgumentException("Token state is VALID but no token value is provided");
         }
         this.value = value;
+        this.expiresAt = expiresAt;
     }
 
     public OAuthToken(@NotNull String value) {
-        this.state = TokenState.VALID;
-        this.value = value;
+        this(TokenState.VALID, value, 0);
     }
 
     public @NotNull TokenState getState() {
@@ -63,4 +73,13 @@ public class OAuthToken {
         }
         return value;
     }
+
+    /**
+     * Returns the expiry of the token, if known to the store
+     *
+     * @return the time at which the token expires, in milliseconds since the epoch, or 0 if unknown
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
 }
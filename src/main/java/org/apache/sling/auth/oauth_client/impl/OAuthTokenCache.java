@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A bounded cache of valid OAuth tokens, keyed by user, connection and token type.
+ * <p>
+ * An entry is valid until the earlier of the token expiry, if known, and the configured time to live. When the
+ * cache is full, the least recently used entry is evicted.
+ */
+class OAuthTokenCache implements OAuthTokenCacheMBean {
+
+    enum TokenType {
+        ACCESS, REFRESH
+    }
+
+    private record Key(@NotNull String userId, @NotNull String connectionName, @NotNull TokenType type) {
+    }
+
+    private final long ttl;
+    private final BoundedCache<Key, OAuthToken> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    OAuthTokenCache(int maxSize, long ttl) {
+        this.ttl = ttl;
+        this.entries = new BoundedCache<>(maxSize);
+    }
+
+    /**
+     * Returns a cached token and records the lookup as a hit or miss.
+     *
+     * @return the cached token or <code>null</code> if the token is not cached or has expired
+     */
+    @Nullable OAuthToken get(@NotNull String userId, @NotNull String connectionName, @NotNull TokenType type) {
+        OAuthToken token = entries.get(new Key(userId, connectionName, type), System.currentTimeMillis());
+        if (token != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return token;
+    }
+
+    /**
+     * Caches a valid token, evicting the least recently used entry if the cache is full.
+     */
+    void put(@NotNull String userId, @NotNull String connectionName, @NotNull TokenType type, @NotNull OAuthToken token) {
+        if (token.getState() != TokenState.VALID) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long expires = now + ttl;
+        if (token.getExpiresAt() > 0) {
+            expires = Math.min(expires, token.getExpiresAt());
+        }
+        if (expires <= now) {
+            return;
+        }
+        entries.put(new Key(userId, connectionName, type), token, expires);
+    }
+
+    /**
+     * Removes the cached tokens of all types for a user and connection.
+     */
+    void invalidate(@NotNull String userId, @NotNull String connectionName) {
+        for (TokenType type : TokenType.values()) {
+            entries.remove(new Key(userId, connectionName, type));
+        }
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public int getSize() {
+        return entries.size();
+    }
+}
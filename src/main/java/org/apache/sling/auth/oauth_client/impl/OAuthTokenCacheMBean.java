@@ -0,0 +1,43 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+/**
+ * Exposes the statistics of the {@link CachingOAuthTokenStore}, since it was activated.
+ */
+public interface OAuthTokenCacheMBean {
+
+    /**
+     * The object name under which the statistics are registered with the JMX whiteboard
+     */
+    String OBJECT_NAME = "org.apache.sling.auth.oauth_client:type=OAuthTokenCache";
+
+    /**
+     * @return the number of token lookups answered from the cache
+     */
+    long getHits();
+
+    /**
+     * @return the number of token lookups passed on to the backing store
+     */
+    long getMisses();
+
+    /**
+     * @return the number of cached tokens
+     */
+    int getSize();
+}
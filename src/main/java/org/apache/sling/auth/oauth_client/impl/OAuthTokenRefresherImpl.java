@@ -18,10 +18,14 @@ package org.apache.sling.auth.oauth_client.impl;
 
 import java.io.IOException;
 import java.net.URI;
+import java.net.URISyntaxException;
 
 import org.apache.sling.auth.oauth_client.ClientConnection;
+import org.apache.sling.auth.oauth_client.spi.HttpTransport;
 import org.jetbrains.annotations.NotNull;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
 
 import com.nimbusds.oauth2.sdk.AccessTokenResponse;
 import com.nimbusds.oauth2.sdk.AuthorizationGrant;
@@ -30,21 +34,25 @@ import com.nimbusds.oauth2.sdk.RefreshTokenGrant;
 import com.nimbusds.oauth2.sdk.TokenErrorResponse;
 import com.nimbusds.oauth2.sdk.TokenRequest;
 import com.nimbusds.oauth2.sdk.auth.ClientAuthentication;
-import com.nimbusds.oauth2.sdk.auth.ClientSecretBasic;
-import com.nimbusds.oauth2.sdk.auth.Secret;
-import com.nimbusds.oauth2.sdk.id.ClientID;
 import com.nimbusds.oauth2.sdk.token.RefreshToken;
 import com.nimbusds.oauth2.sdk.token.Tokens;
 
 @Component
 public class OAuthTokenRefresherImpl implements OAuthTokenRefresher {
 
+    private final HttpTransport httpTransport;
+
+    @Activate
+    public OAuthTokenRefresherImpl(@Reference HttpTransport httpTransport) {
+        this.httpTransport = httpTransport;
+    }
+
     @Override
     public @NotNull OAuthTokens refreshTokens(@NotNull ClientConnection connection, @NotNull String refreshToken) {
         return Converter.toSlingOAuthTokens(refreshTokensInternal(connection, refreshToken));
     }
     
-    private static @NotNull Tokens refreshTokensInternal(@NotNull ClientConnection connection, @NotNull String refreshTokenString) throws OAuthException {
+    private @NotNull Tokens refreshTokensInternal(@NotNull ClientConnection connection, @NotNull String refreshTokenString) throws OAuthException {
          try {
             // Construct the grant from the saved refresh token
              RefreshToken refreshToken = new RefreshToken(refreshTokenString);
@@ -53,17 +61,15 @@ public class OAuthTokenRefresherImpl implements OAuthTokenRefresher {
              ResolvedOAuthConnection conn = ResolvedOAuthConnection.resolve(connection);
             
              // The credentials to authenticate the client at the token endpoint
-             ClientID clientID = new ClientID(conn.clientId());
-             Secret clientSecret = new Secret(conn.clientSecret());
-             ClientAuthentication clientAuth = new ClientSecretBasic(clientID, clientSecret);
+             ClientAuthentication clientAuth = conn.clientCredentials();
             
              // The token endpoint
-             URI tokenEndpoint = URI.create(conn.tokenEndpoint());
+             URI tokenEndpoint = conn.tokenEndpointURI();
             
              // Make the token request
              TokenRequest request = new TokenRequest.Builder(tokenEndpoint, clientAuth, refreshTokenGrant).build();
             
-             AccessTokenResponse response = AccessTokenResponse.parse(request.toHTTPRequest().send());
+             AccessTokenResponse response = AccessTokenResponse.parse(httpTransport.send(request.toHTTPRequest()));
             
              if (! response.indicatesSuccess()) {
                  // We got an error response...
@@ -75,7 +81,7 @@ public class OAuthTokenRefresherImpl implements OAuthTokenRefresher {
             
              // Get the access token, the refresh token may be updated
              return successResponse.getTokens();
-        } catch (ParseException | IOException e) {
+        } catch (ParseException | IOException | URISyntaxException e) {
             throw new OAuthException(e);
         }
     }
@@ -46,6 +46,20 @@ public interface OAuthTokenStore {
     @NotNull OAuthToken getAccessToken(@NotNull ClientConnection connection, @NotNull ResourceResolver resolver) throws OAuthException;
     
     @NotNull OAuthToken getRefreshToken(@NotNull ClientConnection connection, @NotNull ResourceResolver resolver) throws OAuthException;
+
+    /**
+     * Returns the access token and, unless the access token is valid, the refresh token
+     * 
+     * <p>Stores which can read both tokens at once should override this method, which looks up
+     * the tokens one after the other.</p>
+     */
+    default @NotNull StoredTokens getTokens(@NotNull ClientConnection connection, @NotNull ResourceResolver resolver) throws OAuthException {
+        OAuthToken accessToken = getAccessToken(connection, resolver);
+        if (accessToken.getState() == TokenState.VALID) {
+            return new StoredTokens(accessToken, null);
+        }
+        return new StoredTokens(accessToken, getRefreshToken(connection, resolver));
+    }
     
     void persistTokens(@NotNull ClientConnection connection, @NotNull ResourceResolver resolver, @NotNull OAuthTokens tokens) throws OAuthException;
     
@@ -17,7 +17,6 @@
 package org.apache.sling.auth.oauth_client.impl;
 
 import com.nimbusds.jose.JOSEException;
-import com.nimbusds.jose.JWSAlgorithm;
 import com.nimbusds.jose.proc.BadJOSEException;
 import com.nimbusds.oauth2.sdk.AuthorizationCode;
 import com.nimbusds.oauth2.sdk.AuthorizationCodeGrant;
@@ -28,12 +27,10 @@ import com.nimbusds.oauth2.sdk.ParseException;
 import com.nimbusds.oauth2.sdk.TokenRequest;
 import com.nimbusds.oauth2.sdk.TokenResponse;
 import com.nimbusds.oauth2.sdk.auth.ClientSecretBasic;
-import com.nimbusds.oauth2.sdk.auth.Secret;
 import com.nimbusds.oauth2.sdk.http.HTTPRequest;
 import com.nimbusds.oauth2.sdk.http.HTTPResponse;
 import com.nimbusds.oauth2.sdk.id.ClientID;
 import com.nimbusds.oauth2.sdk.id.Identifier;
-import com.nimbusds.oauth2.sdk.id.Issuer;
 import com.nimbusds.oauth2.sdk.id.State;
 import com.nimbusds.openid.connect.sdk.OIDCTokenResponseParser;
 import com.nimbusds.openid.connect.sdk.UserInfoRequest;
@@ -41,21 +38,25 @@ import com.nimbusds.openid.connect.sdk.UserInfoResponse;
 import com.nimbusds.openid.connect.sdk.claims.IDTokenClaimsSet;
 import com.nimbusds.openid.connect.sdk.claims.UserInfo;
 import com.nimbusds.openid.connect.sdk.validators.IDTokenValidator;
+import net.minidev.json.JSONObject;
 import org.apache.jackrabbit.oak.spi.security.authentication.credentials.CredentialsSupport;
 import org.apache.jackrabbit.oak.spi.security.authentication.external.ExternalIdentityProvider;
 import org.apache.sling.auth.core.spi.AuthenticationHandler;
 import org.apache.sling.auth.core.spi.AuthenticationInfo;
 import org.apache.sling.auth.core.spi.DefaultAuthenticationFeedbackHandler;
 import org.apache.sling.auth.oauth_client.ClientConnection;
+import org.apache.sling.auth.oauth_client.spi.HttpTransport;
 import org.apache.sling.auth.oauth_client.spi.LoginCookieManager;
 import org.apache.sling.auth.oauth_client.spi.OidcAuthCredentials;
 import org.apache.sling.auth.oauth_client.spi.UserInfoProcessor;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.resource.api.JcrResourceConstants;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.osgi.framework.BundleContext;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.osgi.service.component.annotations.ReferencePolicyOption;
@@ -72,10 +73,16 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URL;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -92,6 +99,12 @@ public class OidcAuthenticationHandler extends DefaultAuthenticationFeedbackHand
     private static final Logger logger = LoggerFactory.getLogger(OidcAuthenticationHandler.class);
     private static final String AUTH_TYPE = "oidc";
 
+    private static final Set<String> ID_TOKEN_CLAIMS = Set.of("iss", "aud", "exp", "iat", "nbf", "jti", "auth_time",
+            "nonce", "at_hash", "c_hash", "acr", "amr", "azp", "sid");
+
+    // parameters of which at least one is part of every authorization response
+    private static final List<String> AUTHORIZATION_RESPONSE_PARAMETERS = List.of("code=", "error=", "state=");
+
     private final SlingRepository repository;
 
     private final Map<String, ClientConnection> connections;
@@ -101,6 +114,8 @@ public class OidcAuthenticationHandler extends DefaultAuthenticationFeedbackHand
 
     private  final String callbackUri;
 
+    private final @Nullable String callbackPath;
+
     private final LoginCookieManager loginCookieManager;
 
     private final String defaultRedirect;
@@ -111,6 +126,26 @@ public class OidcAuthenticationHandler extends DefaultAuthenticationFeedbackHand
 
     private final boolean userInfoEnabled;
 
+    private final HttpTransport httpTransport;
+
+    private final @Nullable ExecutorService userInfoExecutor;
+
+    private final ClaimsSource claimsSource;
+
+    private final String[] requiredClaims;
+
+    /**
+     * The source of the claims passed to the {@link UserInfoProcessor}, if UserInfo is enabled.
+     */
+    enum ClaimsSource {
+        /** The claims are requested from the UserInfo endpoint */
+        USERINFO,
+        /** The claims are taken from the validated ID token */
+        ID_TOKEN,
+        /** The claims are taken from the ID token, unless one of the required claims is missing */
+        ID_TOKEN_WITH_USERINFO_FALLBACK
+    }
+
     @ObjectClassDefinition(
             name = "Apache Sling Oidc Authentication Handler",
             description = "Apache Sling Oidc Authentication Handler Service"
@@ -142,6 +177,22 @@ public class OidcAuthenticationHandler extends DefaultAuthenticationFeedbackHand
                 description = "UserInfo Enabled")
         boolean userInfoEnabled() default true;
 
+        @AttributeDefinition(name = "Concurrent UserInfo Requests",
+                description = "Maximum number of UserInfo requests which are sent concurrently with the validation " +
+                        "of the ID token. If all threads are busy, the UserInfo request is sent by the request thread. " +
+                        "Set to 0 to validate the ID token before sending the UserInfo request.")
+        int userInfoConcurrency() default 0;
+
+        @AttributeDefinition(name = "Claims Source",
+                description = "Source of the user claims if UserInfo is enabled: the UserInfo endpoint, the ID token, " +
+                        "or the ID token with a fallback to the UserInfo endpoint if one of the required claims is missing")
+        ClaimsSource claimsSource() default ClaimsSource.USERINFO;
+
+        @AttributeDefinition(name = "Required Claims",
+                description = "Claims which must be present in the ID token to skip the UserInfo request, " +
+                        "if the claims source is ID_TOKEN_WITH_USERINFO_FALLBACK")
+        String[] requiredClaims() default {};
+
     }
 
     @Activate
@@ -150,7 +201,8 @@ public class OidcAuthenticationHandler extends DefaultAuthenticationFeedbackHand
                                      @Reference OAuthStateManager stateManager,
                                      Config config,
                                      @Reference(cardinality = ReferenceCardinality.OPTIONAL, policyOption = ReferencePolicyOption.GREEDY) LoginCookieManager loginCookieManager,
-                                     @Reference(policyOption = ReferencePolicyOption.GREEDY) UserInfoProcessor userInfoProcessor
+                                     @Reference(policyOption = ReferencePolicyOption.GREEDY) UserInfoProcessor userInfoProcessor,
+                                     @Reference(policyOption = ReferencePolicyOption.GREEDY) HttpTransport httpTransport
     ) {
 
         this.repository = repository;
@@ -159,11 +211,16 @@ public class OidcAuthenticationHandler extends DefaultAuthenticationFeedbackHand
         this.stateManager = stateManager;
         this.idp = config.idp();
         this.callbackUri = config.callbackUri();
+        this.callbackPath = toCallbackPath(callbackUri);
         this.defaultRedirect = config.defaultRedirect();
         this.loginCookieManager = loginCookieManager;
         this.defaultConnectionName = config.defaultConnectionName();
         this.userInfoProcessor = userInfoProcessor;
         this.userInfoEnabled = config.userInfoEnabled();
+        this.httpTransport = httpTransport;
+        this.userInfoExecutor = config.userInfoConcurrency() > 0 ? newUserInfoExecutor(config.userInfoConcurrency()) : null;
+        this.claimsSource = config.claimsSource() != null ? config.claimsSource() : ClaimsSource.USERINFO;
+        this.requiredClaims = config.requiredClaims() != null ? config.requiredClaims() : new String[0];
 
         logger.debug("activate: registering ExternalIdentityProvider");
         bundleContext.registerService(
@@ -174,6 +231,21 @@ public class OidcAuthenticationHandler extends DefaultAuthenticationFeedbackHand
 
     }
 
+    @Deactivate
+    protected void deactivate() {
+        if (userInfoExecutor != null) {
+            userInfoExecutor.shutdownNow();
+        }
+    }
+
+    private static @NotNull ExecutorService newUserInfoExecutor(int threads) {
+        return new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+            Thread thread = new Thread(r, "sling-oidc-userinfo");
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
 
 
     @Override
@@ -188,6 +260,11 @@ public class OidcAuthenticationHandler extends DefaultAuthenticationFeedbackHand
         }
 
         //The request is not authenticated. 
+        // Most of these requests are anonymous page views, skip them before parsing the request URL
+        if (!isAuthorizationResponse(request)) {
+            return null;
+        }
+
         // 1. Check if the State cookie match with the state in the request received from the idp
         StringBuffer requestURL = request.getRequestURL();
         if ( request.getQueryString() != null )
@@ -224,18 +301,39 @@ public class OidcAuthenticationHandler extends DefaultAuthenticationFeedbackHand
         }
         ResolvedOidcConnection conn = ResolvedOidcConnection.resolve(connection);
 
-        ClientID clientId = new ClientID(conn.clientId());
-        Secret clientSecret = new Secret(conn.clientSecret());
-        ClientSecretBasic clientCredentials = new ClientSecretBasic(clientId, clientSecret);
-
         // Exchange the authorization code for an access token, id token and possibly refresh token
-        TokenResponse tokenResponse = extractTokenResponse(authCode, conn, clientCredentials, callbackUri);
-        IDTokenClaimsSet claims = validateIdToken(tokenResponse, conn);
-        
-        // Make the request to userInfo
+        TokenResponse tokenResponse = extractTokenResponse(authCode, conn, conn.clientCredentials(), callbackUri, httpTransport);
+
+        // Make the request to userInfo, concurrently with the validation of the id token if enabled
+        Future<UserInfo> userInfo = null;
+        if (userInfoEnabled && claimsSource == ClaimsSource.USERINFO && userInfoExecutor != null) {
+            OidcConnectionImpl oidcConnection = (OidcConnectionImpl) connection;
+            userInfo = userInfoExecutor.submit(() -> fetchUserInfo(oidcConnection, tokenResponse));
+        }
+        IDTokenClaimsSet claims;
+        try {
+            claims = validateIdToken(tokenResponse, (OidcConnectionImpl) connection, conn);
+        } catch (RuntimeException e) {
+            if (userInfo != null) {
+                userInfo.cancel(true);
+            }
+            throw e;
+        }
+
         String subject = claims.getSubject().getValue();
-        OidcAuthCredentials credentials = extractCredentials((OidcConnectionImpl) connection, subject, tokenResponse);
-        
+        UserInfo userClaims = null;
+        if (userInfoEnabled) {
+            if (userInfo != null) {
+                userClaims = awaitUserInfo(userInfo);
+            } else if (claimsSource == ClaimsSource.ID_TOKEN
+                    || (claimsSource == ClaimsSource.ID_TOKEN_WITH_USERINFO_FALLBACK && hasRequiredClaims(claims))) {
+                userClaims = toUserInfo(claims);
+            } else {
+                userClaims = fetchUserInfo((OidcConnectionImpl) connection, tokenResponse);
+            }
+        }
+        OidcAuthCredentials credentials = userInfoProcessor.process(userClaims, tokenResponse, subject, idp);
+
         //create authInfo
         authInfo = new AuthenticationInfo(AUTH_TYPE, subject);
         authInfo.put(JcrResourceConstants.AUTHENTICATION_INFO_CREDENTIALS, credentials);
@@ -243,37 +341,100 @@ public class OidcAuthenticationHandler extends DefaultAuthenticationFeedbackHand
         logger.info("User {} authenticated", subject);
         return authInfo;
     }
-    
-    private @NotNull OidcAuthCredentials extractCredentials(@NotNull OidcConnectionImpl connection, @NotNull String subject, @NotNull TokenResponse tokenResponse) {
-        if (userInfoEnabled) {
-            HTTPResponse httpResponseUserInfo;
-            UserInfoResponse userInfoResponse;
-            try {
-                httpResponseUserInfo = new UserInfoRequest(new URI(connection.userInfoUrl()), tokenResponse.toSuccessResponse().getTokens().getAccessToken())
-                        .toHTTPRequest()
-                        .send();
-                userInfoResponse = UserInfoResponse.parse(httpResponseUserInfo);
-                if (!userInfoResponse.indicatesSuccess()) {
-                    // The request failed, e.g. due to invalid or expired token
-                    logger.debug("UserInfo error. Received code: {}, message: {}", userInfoResponse.toErrorResponse().getErrorObject().getCode(), userInfoResponse.toErrorResponse().getErrorObject().getDescription());
-                    throw new RuntimeException(toErrorMessage("Error in userinfo response", userInfoResponse.toErrorResponse()));
-                }
 
-                // Extract the claims
-                UserInfo userInfo = userInfoResponse.toSuccessResponse().getUserInfo();
+    private @NotNull UserInfo fetchUserInfo(@NotNull OidcConnectionImpl connection, @NotNull TokenResponse tokenResponse) {
+        HTTPResponse httpResponseUserInfo;
+        UserInfoResponse userInfoResponse;
+        try {
+            httpResponseUserInfo = httpTransport.send(new UserInfoRequest(new URI(connection.userInfoUrl()), tokenResponse.toSuccessResponse().getTokens().getAccessToken())
+                    .toHTTPRequest());
+            userInfoResponse = UserInfoResponse.parse(httpResponseUserInfo);
+            if (!userInfoResponse.indicatesSuccess()) {
+                // The request failed, e.g. due to invalid or expired token
+                logger.debug("UserInfo error. Received code: {}, message: {}", userInfoResponse.toErrorResponse().getErrorObject().getCode(), userInfoResponse.toErrorResponse().getErrorObject().getDescription());
+                throw new RuntimeException(toErrorMessage("Error in userinfo response", userInfoResponse.toErrorResponse()));
+            }
 
-                //process credentials
-                return userInfoProcessor.process(userInfo, tokenResponse, subject, idp);
+            // Extract the claims
+            return userInfoResponse.toSuccessResponse().getUserInfo();
 
-            } catch (IOException | URISyntaxException | ParseException e) {
-                logger.error("Error while processing UserInfo: {}", e.getMessage(), e);
-                throw new RuntimeException(e);
+        } catch (IOException | URISyntaxException | ParseException e) {
+            logger.error("Error while processing UserInfo: {}", e.getMessage(), e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    private boolean hasRequiredClaims(@NotNull IDTokenClaimsSet claims) {
+        for (String requiredClaim : requiredClaims) {
+            if (claims.getClaim(requiredClaim) == null) {
+                logger.debug("Claim {} missing from ID token, requesting UserInfo", requiredClaim);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Converts the claims of the ID token to a {@link UserInfo}, without the claims which describe the ID token itself.
+     */
+    private static @NotNull UserInfo toUserInfo(@NotNull IDTokenClaimsSet claims) {
+        JSONObject userClaims = claims.toJSONObject();
+        ID_TOKEN_CLAIMS.forEach(userClaims::remove);
+        return new UserInfo(userClaims);
+    }
+
+    private static @NotNull UserInfo awaitUserInfo(@NotNull Future<UserInfo> userInfo) {
+        try {
+            return userInfo.get();
+        } catch (InterruptedException e) {
+            userInfo.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the UserInfo response", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
             }
-        } else {
-            return userInfoProcessor.process(null, tokenResponse, subject, idp);
+            throw new RuntimeException(e.getCause());
         }
     }
     
+    /**
+     * Checks whether the request can be the redirect from the identity provider, without parsing it: it must target
+     * the path of the callback URI, if that is absolute, and carry at least one of the authorization response
+     * parameters. Responses with only some of the parameters are passed on, so that they are reported as invalid.
+     */
+    private boolean isAuthorizationResponse(@NotNull HttpServletRequest request) {
+        if (callbackPath != null && !callbackPath.equals(request.getRequestURI())) {
+            return false;
+        }
+        String queryString = request.getQueryString();
+        if (queryString == null) {
+            return false;
+        }
+        for (String parameter : AUTHORIZATION_RESPONSE_PARAMETERS) {
+            int index = queryString.indexOf(parameter);
+            while (index >= 0) {
+                if (index == 0 || queryString.charAt(index - 1) == '&') {
+                    return true;
+                }
+                index = queryString.indexOf(parameter, index + 1);
+            }
+        }
+        return false;
+    }
+
+    private static @Nullable String toCallbackPath(@Nullable String callbackUri) {
+        if (callbackUri == null) {
+            return null;
+        }
+        try {
+            String path = new URI(callbackUri).getRawPath();
+            return path != null && path.startsWith("/") ? path : null;
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
     private @NotNull Optional<OAuthState> extractClientState(@NotNull AuthorizationResponse authResponse) {
         Optional<OAuthState> clientState = stateManager.toOAuthState(authResponse.getState());
         if (!clientState.isPresent())  {
@@ -293,9 +454,10 @@ public class OidcAuthenticationHandler extends DefaultAuthenticationFeedbackHand
     
     private static @NotNull TokenResponse extractTokenResponse(@NotNull String authCode, @NotNull ResolvedOidcConnection conn, 
                                                                @NotNull ClientSecretBasic clientCredentials, 
-                                                               @NotNull String callbackUri) {
+                                                               @NotNull String callbackUri,
+                                                               @NotNull HttpTransport httpTransport) {
         try {
-            URI tokenEndpoint = new URI(conn.tokenEndpoint());
+            URI tokenEndpoint = conn.tokenEndpointURI();
             TokenRequest tokenRequest = new TokenRequest.Builder(
                     tokenEndpoint,
                     clientCredentials,
@@ -307,7 +469,7 @@ public class OidcAuthenticationHandler extends DefaultAuthenticationFeedbackHand
             // https://docs.github.com/en/apps/oauth-apps/building-oauth-apps/authorizing-oauth-apps#2-users-are-redirected-back-to-your-site-by-github
             // see also https://bitbucket.org/connect2id/oauth-2.0-sdk-with-openid-connect-extensions/issues/107/support-application-x-www-form-urlencoded
             httpRequest.setAccept("application/json");
-            HTTPResponse httpResponse = httpRequest.send();
+            HTTPResponse httpResponse = httpTransport.send(httpRequest);
 
             // extract id token from the response
             TokenResponse tokenResponse = OIDCTokenResponseParser.parse(httpResponse);
@@ -354,19 +516,18 @@ public class OidcAuthenticationHandler extends DefaultAuthenticationFeedbackHand
      *  <li> Check the nonce value if one is expected.</li>
      * </ul>
      *
+     * <p>The validator, and with it the provider's JWK set, is cached by the connection.</p>
+     *
      * @param tokenResponse The token response containing the ID token.
+     * @param connection   The OIDC connection.
      * @param conn         The resolved OIDC connection.
      * @return The validated ID token claims set.
      */
-    private static @NotNull IDTokenClaimsSet validateIdToken(@NotNull TokenResponse tokenResponse, 
+    private @NotNull IDTokenClaimsSet validateIdToken(@NotNull TokenResponse tokenResponse,
+                                                             @NotNull OidcConnectionImpl connection,
                                                              @NotNull ResolvedOidcConnection conn) {
-        Issuer issuer = new Issuer(conn.issuer());
-        ClientID clientID = new ClientID(conn.clientId());
         try {
-            JWSAlgorithm jwsAlg = JWSAlgorithm.RS256; //TODO: Read from config
-            URL jwkSetURL = conn.jwkSetURL().toURL();
-
-            IDTokenValidator validator = new IDTokenValidator(issuer, clientID, jwsAlg, jwkSetURL);
+            IDTokenValidator validator = connection.idTokenValidator(conn, httpTransport);
             return validator.validate(tokenResponse.toSuccessResponse().getTokens().toOIDCTokens().getIDToken(), null);
         } catch (BadJOSEException | JOSEException | MalformedURLException e) {
             logger.error("Failed to validate token: {}", e.getMessage(), e);
@@ -426,13 +587,13 @@ public class OidcAuthenticationHandler extends DefaultAuthenticationFeedbackHand
 
         // The client ID provisioned by the OpenID provider when
         // the client was registered
-        ClientID clientID = new ClientID(conn.clientId());
+        ClientID clientID = conn.clientID();
         
         String redirect = request.getParameter(OAuthStateManager.PARAMETER_NAME_REDIRECT);
         String perRequestKey = new Identifier().getValue();
         State state = stateManager.toNimbusState(new OAuthState(perRequestKey, connection.name(), redirect));
 
-        return RedirectHelper.buildRedirectTarget(clientID, conn.authorizationEndpoint(), conn.scopes(), conn.additionalAuthorizationParameters(), state, perRequestKey, redirectUri);
+        return RedirectHelper.buildRedirectTarget(clientID, conn.authorizationEndpointURI(), conn.scopes(), conn.additionalAuthorizationParameters(), state, perRequestKey, redirectUri);
     }
 
     @Override
@@ -449,7 +610,8 @@ public class OidcAuthenticationHandler extends DefaultAuthenticationFeedbackHand
         }
 
         if (loginCookieManager.getLoginCookie(request) !=null) {
-            // A valid login cookie has been sent
+            // A valid login cookie has been sent, extend the session if it is about to expire
+            loginCookieManager.renewLoginCookie(request, response, repository, authInfo);
             // According to AuthenticationFeedbackHandler javadoc we send because we did not send a redirect to the user
             return false;
         }
@@ -16,16 +16,24 @@
  */
 package org.apache.sling.auth.oauth_client.impl;
 
+import com.nimbusds.openid.connect.sdk.op.OIDCProviderMetadata;
+import com.nimbusds.openid.connect.sdk.validators.IDTokenValidator;
 import org.apache.sling.auth.oauth_client.ClientConnection;
+import org.apache.sling.auth.oauth_client.spi.HttpTransport;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.AttributeType;
 import org.osgi.service.metatype.annotations.Designate;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import java.io.IOException;
+import java.net.MalformedURLException;
 import java.net.URI;
+import java.util.List;
 
 // TODO - bad name
 @Component
@@ -41,16 +49,77 @@ public class OidcConnectionImpl implements ClientConnection {
         String[] scopes();
         String[] additionalAuthorizationParameters();
 
+        @AttributeDefinition(name = "JWK set cache time to live",
+                description = "The time in milliseconds for which the provider's JWK set is cached")
+        long jwkSetCacheTimeToLive() default 300000;
+
+        @AttributeDefinition(name = "JWK set refresh ahead time",
+                description = "The time in milliseconds before the expiry of the cached JWK set at which it is refreshed " +
+                        "in the background. Set to 0 to only refresh the JWK set when it has expired.")
+        long jwkSetRefreshAheadTime() default 30000;
+
+        @AttributeDefinition(name = "JWK set minimum refresh interval",
+                description = "The minimum time in milliseconds between two downloads of the JWK set, which limits the " +
+                        "refreshes triggered by ID tokens signed with an unknown key")
+        long jwkSetMinRefreshInterval() default 30000;
+
+        @AttributeDefinition(name = "Issuer",
+                description = "The issuer of the provider. If set together with the authorization endpoint, token " +
+                        "endpoint and JWK set URL, the provider metadata is not discovered from the base URL.")
+        String issuer() default "";
+
+        @AttributeDefinition(name = "Authorization endpoint",
+                description = "The authorization endpoint of the provider, instead of the discovered one")
+        String authorizationEndpoint() default "";
+
+        @AttributeDefinition(name = "Token endpoint",
+                description = "The token endpoint of the provider, instead of the discovered one")
+        String tokenEndpoint() default "";
+
+        @AttributeDefinition(name = "UserInfo endpoint",
+                description = "The UserInfo endpoint of the provider, instead of the discovered one")
+        String userInfoEndpoint() default "";
+
+        @AttributeDefinition(name = "JWK set URL",
+                description = "The URL of the provider's JWK set, instead of the discovered one")
+        String jwkSetURL() default "";
+
         String webconsole_configurationFactory_nameHint() default "Name: {name}, base URL: {baseUrl}, clientId: {clientId}";
     }
 
     private final Config cfg;
     private final OidcProviderMetadataRegistry metadataRegistry;
+    private final IdTokenValidatorCache idTokenValidators;
+    // true if the endpoints are configured explicitly and the provider metadata is never discovered
+    private final boolean staticMetadata;
+
+    // the snapshot of this connection, resolved again when the provider metadata changes
+    private volatile @Nullable Resolved resolved;
+
+    /**
+     * The resolved views of this connection, together with the provider metadata they were resolved from.
+     */
+    record Resolved(@Nullable OIDCProviderMetadata providerMetadata, @NotNull ResolvedOidcConnection oidc,
+                    @NotNull ResolvedOAuthConnection oauth) {
+    }
 
     @Activate
     public OidcConnectionImpl(Config cfg, @Reference OidcProviderMetadataRegistry metadataRegistry) {
         this.cfg = cfg;
         this.metadataRegistry = metadataRegistry;
+        this.idTokenValidators = new IdTokenValidatorCache(cfg.jwkSetCacheTimeToLive(), cfg.jwkSetRefreshAheadTime(),
+                cfg.jwkSetMinRefreshInterval());
+        this.staticMetadata = isSet(cfg.issuer()) && isSet(cfg.authorizationEndpoint()) && isSet(cfg.tokenEndpoint())
+                && isSet(cfg.jwkSetURL());
+    }
+
+    private static boolean isSet(@Nullable String value) {
+        return value != null && !value.isBlank();
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        idTokenValidators.close();
     }
     
     @Override
@@ -63,14 +132,23 @@ public class OidcConnectionImpl implements ClientConnection {
     }
 
     public String authorizationEndpoint() {
+        if (isSet(cfg.authorizationEndpoint())) {
+            return cfg.authorizationEndpoint();
+        }
         return metadataRegistry.getAuthorizationEndpoint(cfg.baseUrl()).toString();
     }
     
     public String tokenEndpoint() {
+        if (isSet(cfg.tokenEndpoint())) {
+            return cfg.tokenEndpoint();
+        }
         return metadataRegistry.getTokenEndpoint(cfg.baseUrl()).toString();
     }
 
     public URI jwkSetURL() {
+        if (isSet(cfg.jwkSetURL())) {
+            return URI.create(cfg.jwkSetURL());
+        }
         return metadataRegistry.getJWKSetURI(cfg.baseUrl());
     }
     
@@ -83,6 +161,12 @@ public class OidcConnectionImpl implements ClientConnection {
     }
 
     public String userInfoUrl() {
+        if (isSet(cfg.userInfoEndpoint())) {
+            return cfg.userInfoEndpoint();
+        }
+        if (staticMetadata) {
+            throw new OAuthException(String.format("No UserInfo endpoint configured for connection %s", cfg.name()));
+        }
         return metadataRegistry.getUserInfoEndpoint(cfg.baseUrl()).toString();
     }
 
@@ -95,6 +179,70 @@ public class OidcConnectionImpl implements ClientConnection {
     }
 
     public String issuer() {
+        if (isSet(cfg.issuer())) {
+            return cfg.issuer();
+        }
         return metadataRegistry.getIssuer(cfg.baseUrl());
     }
+
+    /**
+     * Returns the snapshot of this connection, resolving it if this was not done before or if the provider
+     * metadata has changed since. Configuration changes create a new connection.
+     *
+     * @return the snapshot
+     */
+    @NotNull Resolved resolved() {
+        OIDCProviderMetadata providerMetadata = providerMetadata();
+        Resolved current = resolved;
+        if (current == null || current.providerMetadata() != providerMetadata) {
+            ResolvedOidcConnection oidc = new ResolvedOidcConnection(name(), authorizationEndpoint(), tokenEndpoint(),
+                    clientId(), clientSecret(), listOf(scopes()), listOf(additionalAuthorizationParameters()),
+                    jwkSetURL(), issuer());
+            current = new Resolved(providerMetadata, oidc, ResolvedOAuthConnection.of(oidc));
+            resolved = current;
+        }
+        return current;
+    }
+
+    private static @NotNull List<String> listOf(@Nullable String[] values) {
+        return values != null ? List.of(values) : List.of();
+    }
+
+    /**
+     * @return the current provider metadata, whose identity changes when the metadata is refreshed, or null if
+     * the endpoints are configured explicitly
+     */
+    @Nullable OIDCProviderMetadata providerMetadata() {
+        return metadataRegistry != null && !staticMetadata ? metadataRegistry.getProviderMetadata(cfg.baseUrl()) : null;
+    }
+
+    /**
+     * Returns the validator for ID tokens issued for this connection. The validator caches the provider's
+     * JWK set and is reused for as long as the issuer, client id and JWK set URL stay the same.
+     *
+     * @param conn the resolved connection
+     * @param httpTransport the transport used to download the JWK set, if a new validator is created
+     * @return the validator
+     * @throws MalformedURLException if the JWK set URL is not a valid URL
+     */
+    @NotNull IDTokenValidator idTokenValidator(@NotNull ResolvedOidcConnection conn, @NotNull HttpTransport httpTransport) throws MalformedURLException {
+        return idTokenValidators.get(conn.issuer(), conn.clientId(), conn.jwkSetURL(), jwkSetTransport(httpTransport));
+    }
+
+    /**
+     * Resolves the provider metadata and downloads the JWK set of this connection, so that they are cached
+     * before the first login.
+     *
+     * @param httpTransport the transport used to download the JWK set
+     * @throws IOException if the JWK set could not be retrieved
+     * @throws OAuthException if the provider metadata could not be retrieved
+     */
+    void warmUp(@NotNull HttpTransport httpTransport) throws IOException {
+        ResolvedOidcConnection conn = ResolvedOidcConnection.resolve(this);
+        idTokenValidators.prefetch(conn.issuer(), conn.clientId(), conn.jwkSetURL(), jwkSetTransport(httpTransport));
+    }
+
+    private @NotNull HttpTransport jwkSetTransport(@NotNull HttpTransport httpTransport) {
+        return metadataRegistry != null ? metadataRegistry.jwkSetTransport(httpTransport) : httpTransport;
+    }
 }
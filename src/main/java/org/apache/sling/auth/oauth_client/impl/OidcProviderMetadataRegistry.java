@@ -16,17 +16,40 @@
  */
 package org.apache.sling.auth.oauth_client.impl;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.sling.auth.oauth_client.spi.HttpTransport;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.nimbusds.common.contenttype.ContentType;
 import com.nimbusds.oauth2.sdk.GeneralException;
+import com.nimbusds.oauth2.sdk.ParseException;
+import com.nimbusds.oauth2.sdk.http.HTTPRequest;
+import com.nimbusds.oauth2.sdk.http.HTTPResponse;
 import com.nimbusds.oauth2.sdk.id.Issuer;
+import com.nimbusds.openid.connect.sdk.op.OIDCProviderConfigurationRequest;
 import com.nimbusds.openid.connect.sdk.op.OIDCProviderMetadata;
 
 /**
@@ -35,22 +58,329 @@ import com.nimbusds.openid.connect.sdk.op.OIDCProviderMetadata;
  * <p>Encapsulates the logic for retrieving the {@link OIDCProviderMetadata} for a given
  * connection.</p>
  * 
- * <p>Maintains a best-effort, unbounded, cache for the metadata, on the assumption that
- * there will be a small number of OIDC connections configured.</p>
+ * <p>Maintains an unbounded cache for the metadata, on the assumption that there will be a small
+ * number of OIDC connections configured. Cached metadata is refreshed in the background shortly
+ * before it expires; while the refresh is in progress, or if it fails, the previous metadata is
+ * still returned. Concurrent lookups of uncached metadata share a single request, and failed lookups
+ * are remembered for a backoff period, which doubles with each consecutive failure.</p>
+ *
+ * <p>The metadata instance is only replaced when its contents change, which lets connections
+ * keep their resolved state for as long as the provider metadata stays the same.</p>
+ *
+ * <p>Unless disabled, the last retrieved metadata and JWK sets are also stored in the bundle data area.
+ * After a restart the stored metadata is used right away and revalidated in the background, and the
+ * stored JWK set is used when it cannot be retrieved from the provider.</p>
  */
 @Component(service = OidcProviderMetadataRegistry.class)
+@Designate(ocd = OidcProviderMetadataRegistry.Config.class)
 public class OidcProviderMetadataRegistry {
-    private final ConcurrentMap<String, OIDCProviderMetadata> cache = new ConcurrentHashMap<>();
+
+    @ObjectClassDefinition(
+            name = "Apache Sling OpenID Connect Provider Metadata Registry",
+            description = "Caches the metadata retrieved from the OpenID Connect providers"
+    )
+    @interface Config {
+        @AttributeDefinition(name = "Time to Live",
+                description = "Time in milliseconds after which the provider metadata is retrieved again")
+        long timeToLive() default 3600000;
+
+        @AttributeDefinition(name = "Refresh Ahead Time",
+                description = "Time in milliseconds before the expiry of the cached provider metadata at which it " +
+                        "is refreshed in the background")
+        long refreshAheadTime() default 300000;
+
+        @AttributeDefinition(name = "Failure Backoff",
+                description = "Time in milliseconds for which a failed retrieval is not retried, doubled for each " +
+                        "consecutive failure")
+        long failureBackoff() default 1000;
+
+        @AttributeDefinition(name = "Maximum Failure Backoff",
+                description = "Upper bound in milliseconds for the failure backoff")
+        long maxFailureBackoff() default 60000;
+
+        @AttributeDefinition(name = "Persistent Cache",
+                description = "Store the retrieved provider metadata and JWK sets in the bundle data area, so that " +
+                        "they are available after a restart while the providers are unreachable")
+        boolean persistentCache() default true;
+    }
+
+    private static final String PERSISTENT_CACHE_DIRECTORY = "oidc-provider-metadata";
+
+    private static final Logger logger = LoggerFactory.getLogger(OidcProviderMetadataRegistry.class);
+
+    private final ConcurrentMap<String, CacheEntry> cache = new ConcurrentHashMap<>();
+    private final HttpTransport httpTransport;
+    private final long timeToLive;
+    private final long refreshAheadTime;
+    private final long failureBackoff;
+    private final long maxFailureBackoff;
+    private final ExecutorService refresher;
+    private final @Nullable ProviderMetadataFileCache fileCache;
+
+    @Activate
+    public OidcProviderMetadataRegistry(@Reference HttpTransport httpTransport, Config config, BundleContext bundleContext) {
+        this(httpTransport, config.timeToLive(), config.refreshAheadTime(), config.failureBackoff(), config.maxFailureBackoff(),
+                config.persistentCache() ? fileCache(bundleContext) : null);
+    }
+
+    OidcProviderMetadataRegistry(@NotNull HttpTransport httpTransport) {
+        this(httpTransport, 3600000, 300000, 1000, 60000, null);
+    }
+
+    OidcProviderMetadataRegistry(@NotNull HttpTransport httpTransport, long timeToLive, long refreshAheadTime,
+                                 long failureBackoff, long maxFailureBackoff, @Nullable ProviderMetadataFileCache fileCache) {
+        this.httpTransport = httpTransport;
+        this.fileCache = fileCache;
+        this.timeToLive = timeToLive > 0 ? timeToLive : Long.MAX_VALUE / 2;
+        this.refreshAheadTime = Math.max(0, Math.min(refreshAheadTime, this.timeToLive));
+        this.failureBackoff = Math.max(0, failureBackoff);
+        this.maxFailureBackoff = Math.max(this.failureBackoff, maxFailureBackoff);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "sling-oidc-metadata-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        this.refresher = executor;
+    }
+
+    private static @Nullable ProviderMetadataFileCache fileCache(@NotNull BundleContext bundleContext) {
+        File directory = bundleContext.getDataFile(PERSISTENT_CACHE_DIRECTORY);
+        if (directory == null) {
+            logger.info("No bundle data area available, provider metadata is not persisted");
+            return null;
+        }
+        return new ProviderMetadataFileCache(directory);
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        refresher.shutdownNow();
+    }
+
+    /**
+     * Returns the transport used to download JWK sets. If the persistent cache is enabled, the downloaded
+     * JWK sets are stored, and the stored JWK set is returned when the provider cannot be reached.
+     *
+     * @param httpTransport the transport to the provider
+     * @return the transport for JWK set downloads
+     */
+    @NotNull HttpTransport jwkSetTransport(@NotNull HttpTransport httpTransport) {
+        ProviderMetadataFileCache cache = fileCache;
+        if (cache == null) {
+            return httpTransport;
+        }
+        return request -> {
+            String url = request.getURI().toString();
+            HTTPResponse response;
+            try {
+                response = httpTransport.send(request);
+            } catch (IOException | IdentityProviderUnavailableException e) {
+                HTTPResponse stored = loadJWKSet(cache, url);
+                if (stored == null) {
+                    throw e;
+                }
+                logger.warn("Failed to download JWK set from {}, using the stored JWK set: {}", url, e.toString());
+                return stored;
+            }
+            if (response.getStatusCode() == HTTPResponse.SC_OK && response.getContent() != null) {
+                persist(cache, ProviderMetadataFileCache.Kind.JWK_SET, url, response.getContent());
+            } else if (response.getStatusCode() >= HTTPResponse.SC_SERVER_ERROR) {
+                HTTPResponse stored = loadJWKSet(cache, url);
+                if (stored != null) {
+                    logger.warn("Failed to download JWK set from {}, using the stored JWK set: HTTP {}", url, response.getStatusCode());
+                    return stored;
+                }
+            }
+            return response;
+        };
+    }
+
+    private static @Nullable HTTPResponse loadJWKSet(@NotNull ProviderMetadataFileCache cache, @NotNull String url) {
+        try {
+            String content = cache.load(ProviderMetadataFileCache.Kind.JWK_SET, url);
+            if (content == null) {
+                return null;
+            }
+            HTTPResponse response = new HTTPResponse(HTTPResponse.SC_OK);
+            response.setEntityContentType(ContentType.APPLICATION_JSON);
+            response.setContent(content);
+            return response;
+        } catch (IOException e) {
+            logger.warn("Failed to read the stored JWK set for {} from {}", url, cache, e);
+            return null;
+        }
+    }
+
+    private static void persist(@NotNull ProviderMetadataFileCache cache, @NotNull ProviderMetadataFileCache.Kind kind,
+                                @NotNull String key, @NotNull String content) {
+        try {
+            cache.store(kind, key, content);
+        } catch (IOException e) {
+            logger.warn("Failed to store {} for {} in {}", kind, key, cache, e);
+        }
+    }
 
     // visible for testing
     protected @NotNull OIDCProviderMetadata getProviderMetadata(@NotNull String base) {
-        return cache.computeIfAbsent(base, s -> {
+        // the map only holds the entries, the metadata is retrieved outside of the map's locks
+        return cache.computeIfAbsent(base, CacheEntry::new).get();
+    }
+
+    /**
+     * Retrieves the provider metadata from the well-known location, like {@link OIDCProviderMetadata#resolve(Issuer)}
+     * but with the configured {@link HttpTransport}.
+     */
+    private @NotNull OIDCProviderMetadata resolve(@NotNull Issuer issuer) throws GeneralException, IOException {
+        HTTPRequest request = new OIDCProviderConfigurationRequest(issuer).toHTTPRequest();
+        HTTPResponse response = httpTransport.send(request);
+        if (response.getStatusCode() != HTTPResponse.SC_OK) {
+            throw new IOException(String.format("Couldn't download OpenID Provider metadata from %s: Status code %d",
+                    request.getURI(), response.getStatusCode()));
+        }
+        OIDCProviderMetadata metadata = OIDCProviderMetadata.parse(response.getContentAsJSONObject());
+        if (!issuer.equals(metadata.getIssuer())) {
+            throw new GeneralException("The returned issuer doesn't match the expected: " + metadata.getIssuer());
+        }
+        return metadata;
+    }
+
+    /**
+     * The cached metadata of a single provider
+     */
+    private final class CacheEntry {
+
+        private final String base;
+
+        // guarded by this
+        private @Nullable OIDCProviderMetadata metadata;
+        private long refreshAt;
+        private long expiresAt;
+        private @Nullable CompletableFuture<OIDCProviderMetadata> loading;
+        private @Nullable OAuthException failure;
+        private long retryAt;
+        private long backoff;
+        private boolean restored;
+
+        CacheEntry(@NotNull String base) {
+            this.base = base;
+        }
+
+        @NotNull OIDCProviderMetadata get() {
+            CompletableFuture<OIDCProviderMetadata> pending;
+            boolean load = false;
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                if (metadata == null && !restored) {
+                    restore();
+                }
+                if (metadata != null) {
+                    if (now >= refreshAt && loading == null && now >= retryAt) {
+                        refreshInBackground();
+                    }
+                    return metadata;
+                }
+                if (failure != null && now < retryAt) {
+                    throw failure;
+                }
+                if (loading == null) {
+                    loading = new CompletableFuture<>();
+                    load = true;
+                }
+                pending = loading;
+            }
+
+            if (load) {
+                load(pending);
+            }
             try {
-                return OIDCProviderMetadata.resolve(new Issuer(s));
-            } catch (GeneralException | IOException e) {
-                throw new OAuthException(e);
+                return pending.join();
+            } catch (CompletionException e) {
+                throw (OAuthException) e.getCause();
             }
-        });
+        }
+
+        /**
+         * Uses the stored metadata, if any, until it has been revalidated with the provider
+         */
+        private void restore() {
+            restored = true;
+            if (fileCache == null) {
+                return;
+            }
+            try {
+                String stored = fileCache.load(ProviderMetadataFileCache.Kind.METADATA, base);
+                if (stored != null) {
+                    metadata = OIDCProviderMetadata.parse(stored);
+                    // due for revalidation right away
+                    refreshAt = expiresAt = System.currentTimeMillis();
+                    logger.info("Using stored provider metadata for {} until it is revalidated", base);
+                }
+            } catch (IOException | ParseException e) {
+                logger.warn("Ignoring the stored provider metadata for {} in {}", base, fileCache, e);
+            }
+        }
+
+        private void refreshInBackground() {
+            CompletableFuture<OIDCProviderMetadata> pending = new CompletableFuture<>();
+            loading = pending;
+            try {
+                refresher.execute(() -> load(pending));
+            } catch (RejectedExecutionException e) {
+                // deactivated, keep the current metadata
+                loading = null;
+            }
+        }
+
+        private void load(@NotNull CompletableFuture<OIDCProviderMetadata> pending) {
+            try {
+                OIDCProviderMetadata loaded = resolve(new Issuer(base));
+                OIDCProviderMetadata current = loaded(loaded);
+                if (current == loaded && fileCache != null) {
+                    persist(fileCache, ProviderMetadataFileCache.Kind.METADATA, base, loaded.toJSONObject().toJSONString());
+                }
+                pending.complete(current);
+            } catch (GeneralException | IOException | RuntimeException e) {
+                pending.completeExceptionally(failed(e));
+            }
+        }
+
+        private synchronized @NotNull OIDCProviderMetadata loaded(@NotNull OIDCProviderMetadata loaded) {
+            long now = System.currentTimeMillis();
+            if (metadata == null || !metadata.toJSONObject().equals(loaded.toJSONObject())) {
+                if (metadata != null) {
+                    logger.info("Provider metadata for {} has changed", base);
+                }
+                metadata = loaded;
+            }
+            expiresAt = saturatedAdd(now, timeToLive);
+            refreshAt = expiresAt - refreshAheadTime;
+            loading = null;
+            failure = null;
+            backoff = 0;
+            retryAt = 0;
+            return metadata;
+        }
+
+        private synchronized @NotNull OAuthException failed(@NotNull Exception e) {
+            long now = System.currentTimeMillis();
+            backoff = backoff == 0 ? failureBackoff : Math.min(backoff * 2, maxFailureBackoff);
+            retryAt = now + backoff;
+            loading = null;
+            failure = e instanceof OAuthException oauthException ? oauthException : new OAuthException(e);
+            if (metadata != null) {
+                logger.warn("Failed to refresh provider metadata for {}, using the {} metadata and retrying in {} ms",
+                        base, now < expiresAt ? "cached" : "expired", backoff, e);
+            } else {
+                logger.debug("Failed to retrieve provider metadata for {}, retrying in {} ms", base, backoff, e);
+            }
+            return failure;
+        }
+    }
+
+    private static long saturatedAdd(long a, long b) {
+        long sum = a + b;
+        return sum < a ? Long.MAX_VALUE : sum;
     }
 
     public @Nullable URI getTokenEndpoint(@NotNull String base) {
@@ -72,4 +402,4 @@ public class OidcProviderMetadataRegistry {
     public @NotNull String getIssuer(@NotNull String base) {
         return getProviderMetadata(base).getIssuer().getValue();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import com.nimbusds.oauth2.sdk.auth.ClientSecretBasic;
+import com.nimbusds.oauth2.sdk.auth.Secret;
+import com.nimbusds.oauth2.sdk.id.ClientID;
+
+/**
+ * The client id, client credentials and endpoints of a connection, parsed once when the connection is resolved.
+ *
+ * <p>Invalid values are not reported until they are used, in the same way as when they are parsed on each use.</p>
+ */
+final class ParsedClientParameters {
+
+    private final @Nullable String clientId;
+    private final @Nullable String clientSecret;
+    private final @Nullable String authorizationEndpoint;
+    private final @Nullable String tokenEndpoint;
+
+    private final @Nullable ClientID clientID;
+    private final @Nullable ClientSecretBasic clientCredentials;
+    private final @Nullable URI authorizationEndpointURI;
+    private final @Nullable URI tokenEndpointURI;
+
+    ParsedClientParameters(@Nullable String clientId, @Nullable String clientSecret, @Nullable String authorizationEndpoint,
+                           @Nullable String tokenEndpoint) {
+        this.clientId = clientId;
+        this.clientSecret = clientSecret;
+        this.authorizationEndpoint = authorizationEndpoint;
+        this.tokenEndpoint = tokenEndpoint;
+        this.clientID = clientId != null && !clientId.isBlank() ? new ClientID(clientId) : null;
+        this.clientCredentials = clientID != null && clientSecret != null ? new ClientSecretBasic(clientID, new Secret(clientSecret)) : null;
+        this.authorizationEndpointURI = parseURI(authorizationEndpoint);
+        this.tokenEndpointURI = parseURI(tokenEndpoint);
+    }
+
+    private static @Nullable URI parseURI(@Nullable String uri) {
+        if ( uri == null )
+            return null;
+        try {
+            return new URI(uri);
+        } catch (URISyntaxException e) {
+            // reported when the URI is used
+            return null;
+        }
+    }
+
+    /**
+     * @return the client id
+     * @throws IllegalArgumentException if no client id is configured
+     */
+    @NotNull ClientID clientID() {
+        return clientID != null ? clientID : new ClientID(clientId);
+    }
+
+    /**
+     * @return the credentials used to authenticate the client at the token endpoint
+     * @throws IllegalArgumentException if no client id or secret is configured
+     */
+    @NotNull ClientSecretBasic clientCredentials() {
+        return clientCredentials != null ? clientCredentials : new ClientSecretBasic(clientID(), new Secret(clientSecret));
+    }
+
+    /**
+     * @return the authorization endpoint
+     * @throws IllegalArgumentException if the configured authorization endpoint is not a valid URI
+     */
+    @NotNull URI authorizationEndpointURI() {
+        return authorizationEndpointURI != null ? authorizationEndpointURI : URI.create(authorizationEndpoint);
+    }
+
+    /**
+     * @return the token endpoint
+     * @throws URISyntaxException if the configured token endpoint is not a valid URI
+     */
+    @NotNull URI tokenEndpointURI() throws URISyntaxException {
+        return tokenEndpointURI != null ? tokenEndpointURI : new URI(tokenEndpoint);
+    }
+}
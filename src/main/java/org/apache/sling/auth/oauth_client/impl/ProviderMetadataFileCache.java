@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Stores the last retrieved provider metadata and JWK sets in local files, so that they are available
+ * after a restart before the provider has been contacted.
+ *
+ * <p>Each document is stored in a file named after the hash of its key, the provider's base URL or the
+ * JWK set URL, and replaced atomically on each update.</p>
+ */
+class ProviderMetadataFileCache {
+
+    enum Kind {
+        METADATA("metadata"),
+        JWK_SET("jwks");
+
+        private final String suffix;
+
+        Kind(String suffix) {
+            this.suffix = suffix;
+        }
+    }
+
+    private final File directory;
+
+    ProviderMetadataFileCache(@NotNull File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param kind the kind of document
+     * @param key the base URL of the provider, or the URL of the JWK set
+     * @return the stored document, or null if none is stored
+     * @throws IOException if the document could not be read
+     */
+    @Nullable String load(@NotNull Kind kind, @NotNull String key) throws IOException {
+        Path file = file(kind, key);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        return Files.readString(file, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param kind the kind of document
+     * @param key the base URL of the provider, or the URL of the JWK set
+     * @param content the document to store
+     * @throws IOException if the document could not be written
+     */
+    void store(@NotNull Kind kind, @NotNull String key, @NotNull String content) throws IOException {
+        Files.createDirectories(directory.toPath());
+        Path file = file(kind, key);
+        Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.writeString(tmpFile, content, StandardCharsets.UTF_8);
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private @NotNull Path file(@NotNull Kind kind, @NotNull String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return directory.toPath().resolve(HexFormat.of().formatHex(hash) + "-" + kind.suffix + ".json");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return directory.toString();
+    }
+}
@@ -39,10 +39,9 @@ class RedirectHelper {
         // Utility class
     }
     
-    static @NotNull RedirectTarget buildRedirectTarget(@NotNull ClientID clientID, @NotNull String authorizationEndpoint, @NotNull List<String> scopes,
+    static @NotNull RedirectTarget buildRedirectTarget(@NotNull ClientID clientID, @NotNull URI authorizationEndpointUri, @NotNull List<String> scopes,
                                         @Nullable List<String> additionalAuthorizationParameters, @NotNull State state,
                                         @NotNull String perRequestKey, @NotNull URI redirectUri) {
-        URI authorizationEndpointUri = URI.create(authorizationEndpoint);
         // Compose the OpenID authentication request (for the code flow)
         AuthorizationRequest.Builder authRequestBuilder = new AuthorizationRequest.Builder(
                 ResponseType.CODE,
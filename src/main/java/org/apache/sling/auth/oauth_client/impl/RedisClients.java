@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import redis.clients.jedis.DefaultJedisClientConfig;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.JedisClientConfig;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPooled;
+import redis.clients.jedis.JedisSentineled;
+import redis.clients.jedis.RedisProtocol;
+import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.csc.CacheConfig;
+import redis.clients.jedis.util.JedisURIHelper;
+
+/**
+ * Creates the Redis clients for a standalone server, a Redis Cluster or a master monitored by Redis Sentinel.
+ */
+final class RedisClients {
+
+    private RedisClients() {
+    }
+
+    /**
+     * Creates a client for the configured topology. Cluster nodes take precedence over a Sentinel master, which
+     * takes precedence over the URL of a standalone server.
+     *
+     * @param redisUrl the URL of a standalone server, may be empty
+     * @param clusterNodes the URLs of cluster nodes, the credentials of the first one are used for all nodes
+     * @param sentinelMaster the name of the master monitored by the Sentinels, may be empty
+     * @param sentinelNodes the URLs of the Sentinels, the credentials of the first one are used for the Sentinels
+     *                      and the master, its database for the master
+     * @param cacheConfig the configuration of the client-side cache, <code>null</code> to disable it
+     * @return the client
+     * @throws IllegalArgumentException if no topology is configured
+     */
+    static @NotNull UnifiedJedis create(@NotNull String redisUrl, @NotNull String[] clusterNodes, @NotNull String sentinelMaster,
+                                        @NotNull String[] sentinelNodes, @Nullable CacheConfig cacheConfig) {
+        if (clusterNodes.length > 0) {
+            Set<HostAndPort> nodes = hostsAndPorts(clusterNodes);
+            // a cluster only has a single database
+            JedisClientConfig clientConfig = clientConfig(URI.create(clusterNodes[0]), cacheConfig != null, false);
+            return cacheConfig != null ? new JedisCluster(nodes, clientConfig, cacheConfig) : new JedisCluster(nodes, clientConfig);
+        }
+        if (!sentinelMaster.isEmpty()) {
+            if (sentinelNodes.length == 0) {
+                throw new IllegalArgumentException("No Sentinel nodes configured for master " + sentinelMaster);
+            }
+            Set<HostAndPort> sentinels = hostsAndPorts(sentinelNodes);
+            URI first = URI.create(sentinelNodes[0]);
+            JedisClientConfig masterConfig = clientConfig(first, cacheConfig != null, true);
+            JedisClientConfig sentinelConfig = clientConfig(first, false, false);
+            return cacheConfig != null
+                    ? new JedisSentineled(sentinelMaster, masterConfig, cacheConfig, sentinels, sentinelConfig)
+                    : new JedisSentineled(sentinelMaster, masterConfig, sentinels, sentinelConfig);
+        }
+        if (redisUrl.isEmpty()) {
+            throw new IllegalArgumentException("Neither a Redis URL, cluster nodes nor a Sentinel master are configured");
+        }
+        return create(URI.create(redisUrl), cacheConfig);
+    }
+
+    /**
+     * Creates a client for a standalone server.
+     *
+     * @param uri the URL of the server
+     * @param cacheConfig the configuration of the client-side cache, <code>null</code> to disable it
+     * @return the client
+     */
+    static @NotNull UnifiedJedis create(@NotNull URI uri, @Nullable CacheConfig cacheConfig) {
+        if (cacheConfig == null) {
+            return new JedisPooled(uri);
+        }
+        return new JedisPooled(JedisURIHelper.getHostAndPort(uri), clientConfig(uri, true, true), cacheConfig);
+    }
+
+    private static @NotNull JedisClientConfig clientConfig(@NotNull URI uri, boolean clientSideCaching, boolean selectDatabase) {
+        DefaultJedisClientConfig.Builder builder = DefaultJedisClientConfig.builder()
+                .user(JedisURIHelper.getUser(uri))
+                .password(JedisURIHelper.getPassword(uri))
+                .ssl(JedisURIHelper.isRedisSSLScheme(uri));
+        if (selectDatabase) {
+            builder.database(JedisURIHelper.getDBIndex(uri));
+        }
+        // invalidation messages are pushed on the data connections, which requires RESP3
+        if (clientSideCaching) {
+            builder.protocol(RedisProtocol.RESP3);
+        }
+        return builder.build();
+    }
+
+    private static @NotNull Set<HostAndPort> hostsAndPorts(@NotNull String[] urls) {
+        return Arrays.stream(urls)
+                .map(url -> JedisURIHelper.getHostAndPort(URI.create(url)))
+                .collect(Collectors.toSet());
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Stores the keys in Redis, so that they are shared by all instances connected to the same Redis server,
+ * cluster or Sentinel-monitored master.
+ * <p>
+ * Updates are performed atomically by a script which compares the stored keys with the expected ones, so
+ * concurrent rotations by different instances never overwrite each other. Unlike <code>WATCH</code>/<code>MULTI</code>,
+ * this also works on a Redis Cluster.
+ * <p>
+ * The keys are stored as they are, so anyone with read access to Redis, its replicas or its backups can
+ * forge login cookies unless the store is wrapped in an {@link EncryptingKeyRingStore}.
+ */
+class RedisKeyRingStore implements KeyRingStore {
+
+    private static final byte[] KEY = "sling.oauth.cookie-tokens".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] COMPARE_AND_SET = ("local current = redis.call('GET', KEYS[1])\n" +
+            "if ARGV[1] == '1' then\n" +
+            "  if current ~= ARGV[2] then return 0 end\n" +
+            "elseif current then\n" +
+            "  return 0\n" +
+            "end\n" +
+            "redis.call('SET', KEYS[1], ARGV[3])\n" +
+            "return 1").getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] EXPECTED = "1".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NOT_EXPECTED = "0".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NONE = new byte[0];
+
+    private final UnifiedJedis jedis;
+
+    private RedisKeyRingStore(@NotNull UnifiedJedis jedis) {
+        this.jedis = jedis;
+    }
+
+    /**
+     * Creates a store connected to the given Redis server. The return type keeps Jedis out of the
+     * signature, so that callers do not require Jedis unless Redis is actually configured.
+     *
+     * @param redisUrl the URL of the Redis server
+     * @return the store
+     */
+    static @NotNull KeyRingStore create(@NotNull String redisUrl) {
+        return create(redisUrl, new String[0], "", new String[0]);
+    }
+
+    /**
+     * Creates a store connected to a standalone server, a Redis Cluster or a Sentinel-monitored master,
+     * see {@link RedisClients#create(String, String[], String, String[], redis.clients.jedis.csc.CacheConfig)}.
+     *
+     * @return the store
+     */
+    static @NotNull KeyRingStore create(@NotNull String redisUrl, @NotNull String[] clusterNodes,
+                                        @NotNull String sentinelMaster, @NotNull String[] sentinelNodes) {
+        return new RedisKeyRingStore(RedisClients.create(redisUrl, clusterNodes, sentinelMaster, sentinelNodes, null));
+    }
+
+    @Override
+    public @Nullable byte[] load() throws IOException {
+        try {
+            return jedis.get(KEY);
+        } catch (JedisException e) {
+            throw new IOException("Failed to load keys from Redis", e);
+        }
+    }
+
+    @Override
+    public boolean store(@Nullable byte[] expected, @NotNull byte[] keys) throws IOException {
+        try {
+            Object result = jedis.eval(COMPARE_AND_SET, List.of(KEY),
+                    List.of(expected != null ? EXPECTED : NOT_EXPECTED, expected != null ? expected : NONE, keys));
+            return Long.valueOf(1).equals(result);
+        } catch (JedisException e) {
+            throw new IOException("Failed to store keys in Redis", e);
+        }
+    }
+
+    @Override
+    public boolean isShared() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        jedis.close();
+    }
+
+    @Override
+    public String toString() {
+        return "Redis key " + new String(KEY, StandardCharsets.UTF_8);
+    }
+}
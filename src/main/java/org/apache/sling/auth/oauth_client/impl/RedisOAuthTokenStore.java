@@ -18,6 +18,11 @@ package org.apache.sling.auth.oauth_client.impl;
 
 import static org.osgi.service.component.annotations.ConfigurationPolicy.REQUIRE;
 
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.auth.oauth_client.ClientConnection;
 import org.jetbrains.annotations.NotNull;
@@ -28,66 +33,237 @@ import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.Designate;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 
-import redis.clients.jedis.Jedis;
-import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.AbstractPipeline;
+import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.csc.CacheConfig;
 
+/**
+ * Stores the tokens in Redis
+ * 
+ * <p>The access and refresh token of a user and connection are stored in separate keys, each expiring on its own:
+ * the access token together with its lifetime, the refresh token after the configured time to live. The access token
+ * is stored as <code>expiresAt|token</code>, so that its expiry is known from the value alone. Both are written
+ * atomically by a single Lua script and read with a single <code>MGET</code>.</p>
+ * 
+ * <p>A standalone server, a Redis Cluster or a master monitored by Redis Sentinel can be used. The keys of a user and
+ * connection share a hash tag, so that they are always stored in the same cluster slot and the script can write both
+ * of them on a cluster as well.</p>
+ *
+ * <p>Optionally, tokens stored by earlier versions under keys without a hash tag are looked up when no tokens are
+ * found, and are moved to the current keys unless tokens have been stored there in the meantime.</p>
+ * 
+ * <p>Optionally, tokens are read through a client-side cache, which Redis keeps consistent by sending invalidation
+ * messages over RESP3 whenever a cached key is written or expires.</p>
+ */
 @Component(configurationPolicy = REQUIRE)
 @Designate(ocd = RedisOAuthTokenStore.Config.class)
 public class RedisOAuthTokenStore implements OAuthTokenStore {
     
     @ObjectClassDefinition(name = "Redis OAuth Token Store")
     static @interface Config {
-        @AttributeDefinition(name = "Redis URL")
-        String redisUrl();
+        @AttributeDefinition(name = "Redis URL",
+                description = "URL of a standalone Redis server")
+        String redisUrl() default "";
+
+        @AttributeDefinition(name = "Cluster Nodes",
+                description = "URLs of one or more nodes of a Redis Cluster, used instead of the Redis URL. The " +
+                        "credentials of the first URL are used for all nodes.")
+        String[] clusterNodes() default {};
+
+        @AttributeDefinition(name = "Sentinel Master",
+                description = "Name of the master monitored by the Redis Sentinels, used instead of the Redis URL")
+        String sentinelMaster() default "";
+
+        @AttributeDefinition(name = "Sentinel Nodes",
+                description = "URLs of the Redis Sentinels. The credentials of the first URL are used for the " +
+                        "Sentinels and the master, its database for the master.")
+        String[] sentinelNodes() default {};
+
+        @AttributeDefinition(name = "Replica URLs",
+                description = "URLs of replicas from which tokens are looked up. Lookups which do not find a valid " +
+                        "access token on a replica are repeated on the primary, so that tokens written recently are " +
+                        "not missed. Not supported with Redis Cluster.")
+        String[] replicaUrls() default {};
+
+        @AttributeDefinition(name = "Refresh Token Time To Live",
+                description = "Time in milliseconds after which a stored refresh token is removed, counted from the time " +
+                        "it was stored. 0 keeps refresh tokens until they are replaced.")
+        long refreshTokenTimeToLive() default 0;
+
+        @AttributeDefinition(name = "Client-side Caching",
+                description = "Serve token lookups from a local cache which is invalidated by Redis when the tokens " +
+                        "change. Requires Redis 7.4 or newer.")
+        boolean clientSideCaching() default false;
+
+        @AttributeDefinition(name = "Client-side Cache Size",
+                description = "Maximum number of keys held in the client-side cache")
+        int clientSideCacheSize() default 10000;
+
+        @AttributeDefinition(name = "Migrate Legacy Keys",
+                description = "Look up tokens stored by earlier versions under keys without a hash tag when no tokens " +
+                        "are found, and move them to the current keys. This adds round trips to lookups which find no " +
+                        "tokens and to writes, so it should only be enabled until all tokens have been migrated.")
+        boolean migrateLegacyKeys() default false;
     }
 
     private static final String KEY_PREFIX = "sling.oauth.tokens";
     
-    private static final String KEY_SEGMENT_ACCESS_TOKEN = "access_token";
-    private static final String KEY_SEGMENT_REFRESH_TOKEN = "refresh_token";
+    private static final String SUFFIX_ACCESS_TOKEN = "access_token";
+    private static final String SUFFIX_REFRESH_TOKEN = "refresh_token";
+
+    private static final String ACCESS_TOKEN_SEPARATOR = "|";
+
+    /**
+     * Writes the access token (KEYS[1]) and refresh token (KEYS[2]) atomically. ARGV[1] and ARGV[3] are the tokens,
+     * an empty access token deletes it and an empty refresh token keeps the stored one. ARGV[2] and ARGV[4] are their
+     * times to live in milliseconds, 0 if they do not expire. If ARGV[5] is 1, nothing is written if either key
+     * exists. Returns 1 if the tokens were written, 0 otherwise.
+     */
+    private static final String PERSIST_TOKENS =
+            "if ARGV[5] == '1' and redis.call('EXISTS', KEYS[1], KEYS[2]) > 0 then return 0 end " +
+            "if ARGV[1] == '' then redis.call('DEL', KEYS[1]) " +
+            "elseif ARGV[2] == '0' then redis.call('SET', KEYS[1], ARGV[1]) " +
+            "else redis.call('SET', KEYS[1], ARGV[1], 'PX', ARGV[2]) end " +
+            "if ARGV[3] ~= '' then " +
+            "  if ARGV[4] == '0' then redis.call('SET', KEYS[2], ARGV[3]) " +
+            "  else redis.call('SET', KEYS[2], ARGV[3], 'PX', ARGV[4]) end " +
+            "end " +
+            "return 1";
     
-    private final JedisPool pool;
+    private final UnifiedJedis jedis;
+    private final List<UnifiedJedis> replicas;
+    private final long refreshTokenTimeToLive;
+    private final boolean migrateLegacyKeys;
     
     @Activate
     public RedisOAuthTokenStore(@NotNull Config cfg) {
-        pool = new JedisPool(cfg.redisUrl());
+        CacheConfig cacheConfig = cfg.clientSideCaching() ? CacheConfig.builder().maxSize(cfg.clientSideCacheSize()).build() : null;
+        if (cfg.clusterNodes().length > 0 && cfg.replicaUrls().length > 0) {
+            throw new IllegalArgumentException("Replica URLs are not supported with Redis Cluster");
+        }
+        jedis = RedisClients.create(cfg.redisUrl(), cfg.clusterNodes(), cfg.sentinelMaster(), cfg.sentinelNodes(), cacheConfig);
+        replicas = Arrays.stream(cfg.replicaUrls())
+                .map(url -> RedisClients.create(URI.create(url), cacheConfig))
+                .toList();
+        refreshTokenTimeToLive = cfg.refreshTokenTimeToLive();
+        migrateLegacyKeys = cfg.migrateLegacyKeys();
     }
     
     public void deactivate() {
-        pool.close();
+        replicas.forEach(UnifiedJedis::close);
+        jedis.close();
     }
 
     @Override
     public @NotNull OAuthToken getAccessToken(@NotNull ClientConnection connection, @NotNull ResourceResolver resolver) throws OAuthException {
+        return getTokens(connection, resolver).accessToken();
+    }
+
+    @Override
+    public @NotNull OAuthToken getRefreshToken(@NotNull ClientConnection connection, @NotNull ResourceResolver resolver) throws OAuthException {
         String userId = resolver.getUserID();
         
-        try ( Jedis jedis = pool.getResource()) {
-            String accessToken = jedis.get(keyFor(userId, connection, KEY_SEGMENT_ACCESS_TOKEN));
-            if ( accessToken != null ) {
-                return new OAuthToken(TokenState.VALID , accessToken);
-            }
-            
-            String refreshToken = jedis.get(keyFor(userId, connection, KEY_SEGMENT_REFRESH_TOKEN));
-            if ( refreshToken != null ) {
-                return new OAuthToken(TokenState.EXPIRED, null);
-            }
-            
-            return new OAuthToken(TokenState.MISSING, null);
+        String refreshToken = jedis.get(keyFor(userId, connection, SUFFIX_REFRESH_TOKEN));
+        if (refreshToken != null) {
+            return new OAuthToken(TokenState.VALID, refreshToken);
         }
+        if (migrateLegacyKeys) {
+            return migrateLegacyTokens(userId, connection).refreshToken();
+        }
+
+        return new OAuthToken(TokenState.MISSING, null);
     }
 
     @Override
-    public @NotNull OAuthToken getRefreshToken(@NotNull ClientConnection connection, @NotNull ResourceResolver resolver) throws OAuthException {
+    public @NotNull StoredTokens getTokens(@NotNull ClientConnection connection, @NotNull ResourceResolver resolver) throws OAuthException {
         String userId = resolver.getUserID();
-        
-        try (Jedis jedis = pool.getResource()) {
-            String refreshToken = jedis.get(keyFor(userId, connection, KEY_SEGMENT_REFRESH_TOKEN));
-            if (refreshToken != null) {
-                return new OAuthToken(TokenState.VALID, refreshToken);
+        String accessKey = keyFor(userId, connection, SUFFIX_ACCESS_TOKEN);
+        String refreshKey = keyFor(userId, connection, SUFFIX_REFRESH_TOKEN);
+
+        if (!replicas.isEmpty()) {
+            UnifiedJedis replica = replicas.get(ThreadLocalRandom.current().nextInt(replicas.size()));
+            StoredTokens tokens = getTokens(replica, accessKey, refreshKey);
+            // a replica may lag behind the primary, so only valid tokens are taken from it
+            if (tokens.accessToken().getState() == TokenState.VALID) {
+                return tokens;
+            }
+        }
+        StoredTokens tokens = getTokens(jedis, accessKey, refreshKey);
+        if (migrateLegacyKeys && tokens.accessToken().getState() == TokenState.MISSING
+                && tokens.refreshToken().getState() == TokenState.MISSING) {
+            return migrateLegacyTokens(userId, connection);
+        }
+        return tokens;
+    }
+
+    /**
+     * Moves the tokens stored by earlier versions under keys without a hash tag to the current keys, unless tokens
+     * were stored under the current keys since they were looked up.
+     *
+     * @return the migrated tokens, or the current ones if they were stored in the meantime
+     */
+    @NotNull StoredTokens migrateLegacyTokens(@Nullable String userId, @NotNull ClientConnection connection) {
+        String legacyAccessKey = legacyKeyFor(userId, connection, SUFFIX_ACCESS_TOKEN);
+        String legacyRefreshKey = legacyKeyFor(userId, connection, SUFFIX_REFRESH_TOKEN);
+        // the legacy keys are in different cluster slots and cannot be read together
+        String accessToken = jedis.get(legacyAccessKey);
+        String refreshToken = jedis.get(legacyRefreshKey);
+        if (accessToken == null && refreshToken == null) {
+            return new StoredTokens(new OAuthToken(TokenState.MISSING, null), new OAuthToken(TokenState.MISSING, null));
+        }
+        long accessTimeToLive = 0;
+        if (accessToken != null) {
+            long timeToLive = jedis.pttl(legacyAccessKey);
+            if (timeToLive == -2) {
+                // expired since it was read
+                accessToken = null;
+            } else {
+                // PTTL is -1 for keys without an expiry
+                accessTimeToLive = Math.max(timeToLive, 0);
             }
+        }
+        boolean migrated = writeTokens(userId, connection, accessToken, accessTimeToLive, refreshToken, true);
+        deleteLegacyTokens(userId, connection);
+        if (!migrated) {
+            // a concurrent write stored newer tokens, which must not be overwritten with the legacy ones
+            return getTokens(jedis, keyFor(userId, connection, SUFFIX_ACCESS_TOKEN), keyFor(userId, connection, SUFFIX_REFRESH_TOKEN));
+        }
+
+        OAuthToken refresh = refreshToken != null ? new OAuthToken(TokenState.VALID, refreshToken) : new OAuthToken(TokenState.MISSING, null);
+        if (accessToken != null) {
+            long expiresAt = accessTimeToLive > 0 ? System.currentTimeMillis() + accessTimeToLive : 0;
+            return new StoredTokens(new OAuthToken(TokenState.VALID, accessToken, expiresAt), refresh);
+        }
+        return new StoredTokens(new OAuthToken(refreshToken != null ? TokenState.EXPIRED : TokenState.MISSING, null), refresh);
+    }
+
+    private void deleteLegacyTokens(@Nullable String userId, @NotNull ClientConnection connection) {
+        try (AbstractPipeline pipeline = jedis.pipelined()) {
+            pipeline.del(legacyKeyFor(userId, connection, SUFFIX_ACCESS_TOKEN));
+            pipeline.del(legacyKeyFor(userId, connection, SUFFIX_REFRESH_TOKEN));
+            pipeline.sync();
+        }
+    }
 
-            return new OAuthToken(TokenState.MISSING, null);
+    private @NotNull StoredTokens getTokens(@NotNull UnifiedJedis client, @NotNull String accessKey, @NotNull String refreshKey) {
+        // a single command, which is also served from the client-side cache
+        List<String> values = client.mget(accessKey, refreshKey);
+        String accessValue = values.get(0);
+        String refreshToken = values.get(1);
+
+        OAuthToken refresh = refreshToken != null ? new OAuthToken(TokenState.VALID, refreshToken) : new OAuthToken(TokenState.MISSING, null);
+        if (accessValue != null) {
+            OAuthToken access = parseAccessToken(accessValue);
+            // a cached value may outlive the key until the invalidation message arrives
+            if (access.getExpiresAt() == 0 || access.getExpiresAt() > System.currentTimeMillis()) {
+                return new StoredTokens(access, refresh);
+            }
         }
+        // the access token key expires together with the access token
+        if (refreshToken != null) {
+            return new StoredTokens(new OAuthToken(TokenState.EXPIRED, null), refresh);
+        }
+        return new StoredTokens(new OAuthToken(TokenState.MISSING, null), refresh);
     }
 
     @Override
@@ -95,30 +271,58 @@ public class RedisOAuthTokenStore implements OAuthTokenStore {
             throws OAuthException {
         String userId = resolver.getUserID();
 
-        try (Jedis jedis = pool.getResource()) {
-            setWithExpiry(jedis, keyFor(userId, connection, KEY_SEGMENT_ACCESS_TOKEN), tokens.accessToken(), tokens.expiresAt() );
-            if ( tokens.refreshToken() != null )
-                jedis.set(keyFor(userId, connection, KEY_SEGMENT_REFRESH_TOKEN), tokens.refreshToken());
+        writeTokens(userId, connection, tokens.accessToken(), tokens.expiresAt() * 1000L, tokens.refreshToken(), false);
+        if (migrateLegacyKeys) {
+            // tokens stored by earlier versions must not be found once the current ones have expired
+            deleteLegacyTokens(userId, connection);
         }
     }
+
+    private boolean writeTokens(@Nullable String userId, @NotNull ClientConnection connection, @Nullable String accessToken,
+                                long accessTimeToLive, @Nullable String refreshToken, boolean onlyIfAbsent) {
+        String accessValue = "";
+        if (accessToken != null) {
+            long expiresAt = accessTimeToLive > 0 ? System.currentTimeMillis() + accessTimeToLive : 0;
+            accessValue = expiresAt + ACCESS_TOKEN_SEPARATOR + accessToken;
+        }
+        // a refresh token which was not renewed is kept, together with its expiry
+        Object result = jedis.eval(PERSIST_TOKENS,
+                List.of(keyFor(userId, connection, SUFFIX_ACCESS_TOKEN), keyFor(userId, connection, SUFFIX_REFRESH_TOKEN)),
+                List.of(accessValue, String.valueOf(Math.max(accessTimeToLive, 0)),
+                        refreshToken != null ? refreshToken : "", String.valueOf(Math.max(refreshTokenTimeToLive, 0)),
+                        onlyIfAbsent ? "1" : "0"));
+        return Long.valueOf(1).equals(result);
+    }
+
+    /**
+     * Parses an access token stored as <code>expiresAt|token</code>, where <code>expiresAt</code> is 0 for tokens
+     * without a lifetime.
+     */
+    static @NotNull OAuthToken parseAccessToken(@NotNull String value) {
+        int separator = value.indexOf(ACCESS_TOKEN_SEPARATOR);
+        if (separator > 0) {
+            try {
+                return new OAuthToken(TokenState.VALID, value.substring(separator + 1), Long.parseLong(value.substring(0, separator)));
+            } catch (NumberFormatException e) {
+                // not written by this store
+            }
+        }
+        return new OAuthToken(TokenState.VALID, value);
+    }
     
     @Override
     public void clearAccessToken(@NotNull ClientConnection connection, @NotNull ResourceResolver resolver) throws OAuthException {
-    	   String userId = resolver.getUserID();
+        String userId = resolver.getUserID();
 
-           try (Jedis jedis = pool.getResource()) {
-        	   jedis.del(keyFor(userId, connection, KEY_SEGMENT_ACCESS_TOKEN));
-           }
-    	
+        jedis.del(keyFor(userId, connection, SUFFIX_ACCESS_TOKEN));
     }
     
-    private static void setWithExpiry(@NotNull Jedis jedis, @NotNull String key, @Nullable String value, long expiry) {
-        jedis.set(key, value);
-        if ( expiry > 0 )
-            jedis.expire(key, expiry);
+    static @NotNull String keyFor(@Nullable String principal, @NotNull ClientConnection connection, @NotNull String suffix) {
+        // the hash tag keeps all keys of a user and connection in the same cluster slot
+        return KEY_PREFIX + ".{" + principal + "." + connection.name() + "}." + suffix;
     }
-    
-    private static String keyFor(@Nullable String principal, @NotNull ClientConnection connection, @Nullable String tokenType) {
-        return KEY_PREFIX + "." + principal + "." + connection.name() + "." + tokenType;
+
+    static @NotNull String legacyKeyFor(@Nullable String principal, @NotNull ClientConnection connection, @NotNull String suffix) {
+        return KEY_PREFIX + "." + principal + "." + connection.name() + "." + suffix;
     }
 }
@@ -16,16 +16,23 @@
  */
 package org.apache.sling.auth.oauth_client.impl;
 
-import java.util.Arrays;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.List;
 
 import org.apache.sling.auth.oauth_client.ClientConnection;
 import org.jetbrains.annotations.NotNull;
 
+import com.nimbusds.oauth2.sdk.auth.ClientSecretBasic;
+import com.nimbusds.oauth2.sdk.id.ClientID;
+
 /**
  * An OAuth connection that has all configuration parameters materialised
  * 
  * <p>Serves as an internal abstraction over the client-facing {@link ClientConnection} and its implementations.</p>
+ *
+ * <p>Instances are immutable snapshots which are resolved once per connection, see {@link ResolvedOidcConnection}.
+ * The client id, client credentials and endpoints are parsed once, see {@link ParsedClientParameters}.</p>
  */
 public record ResolvedOAuthConnection(
         String name,
@@ -34,30 +41,21 @@ public record ResolvedOAuthConnection(
         String clientId,
         String clientSecret,
         List<String> scopes,
-        List<String> additionalAuthorizationParameters) {
-    
+        List<String> additionalAuthorizationParameters,
+        @NotNull ParsedClientParameters parameters) {
+
+    public ResolvedOAuthConnection(String name, String authorizationEndpoint, String tokenEndpoint, String clientId,
+                                   String clientSecret, List<String> scopes, List<String> additionalAuthorizationParameters) {
+        this(name, authorizationEndpoint, tokenEndpoint, clientId, clientSecret, scopes, additionalAuthorizationParameters,
+                new ParsedClientParameters(clientId, clientSecret, authorizationEndpoint, tokenEndpoint));
+    }
+
     public static @NotNull ResolvedOAuthConnection resolve(@NotNull ClientConnection connection) {
         
         if ( connection instanceof OidcConnectionImpl impl ) {
-            return new ResolvedOAuthConnection(
-                    connection.name(), 
-                    impl.authorizationEndpoint(), 
-                    impl.tokenEndpoint(),
-                    impl.clientId(), 
-                    impl.clientSecret(), 
-                    Arrays.asList(impl.scopes()),
-                    Arrays.asList(impl.additionalAuthorizationParameters())
-                );
+            return impl.resolved().oauth();
         } else if ( connection instanceof OAuthConnectionImpl impl) {
-            return new ResolvedOAuthConnection(
-                    connection.name(), 
-                    impl.authorizationEndpoint(), 
-                    impl.tokenEndpoint(),
-                    impl.clientId(), 
-                    impl.clientSecret(), 
-                    Arrays.asList(impl.scopes()),
-                    Arrays.asList(impl.additionalAuthorizationParameters())
-                );
+            return impl.resolved();
         }
         
         throw new IllegalArgumentException(String.format("Unable to resolve %s (name=%s) of type %s", 
@@ -65,4 +63,47 @@ public record ResolvedOAuthConnection(
 
     }
 
+    static @NotNull ResolvedOAuthConnection of(@NotNull ResolvedOidcConnection oidc) {
+        return new ResolvedOAuthConnection(
+                oidc.name(),
+                oidc.authorizationEndpoint(),
+                oidc.tokenEndpoint(),
+                oidc.clientId(),
+                oidc.clientSecret(),
+                oidc.scopes(),
+                oidc.additionalAuthorizationParameters(),
+                oidc.parameters()
+            );
+    }
+
+    /**
+     * @return the client id
+     */
+    public @NotNull ClientID clientID() {
+        return parameters.clientID();
+    }
+
+    /**
+     * @return the credentials used to authenticate the client at the token endpoint
+     */
+    public @NotNull ClientSecretBasic clientCredentials() {
+        return parameters.clientCredentials();
+    }
+
+    /**
+     * @return the authorization endpoint
+     * @throws IllegalArgumentException if the configured authorization endpoint is not a valid URI
+     */
+    public @NotNull URI authorizationEndpointURI() {
+        return parameters.authorizationEndpointURI();
+    }
+
+    /**
+     * @return the token endpoint
+     * @throws URISyntaxException if the configured token endpoint is not a valid URI
+     */
+    public @NotNull URI tokenEndpointURI() throws URISyntaxException {
+        return parameters.tokenEndpointURI();
+    }
+
 }
@@ -19,13 +19,20 @@ package org.apache.sling.auth.oauth_client.impl;
 import org.apache.sling.auth.oauth_client.ClientConnection;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.Arrays;
+import com.nimbusds.oauth2.sdk.auth.ClientSecretBasic;
+import com.nimbusds.oauth2.sdk.id.ClientID;
+
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.List;
 
 /**
  * An OAuth connection that has all configuration parameters materialised
  * 
  * <p>Serves as an internal abstraction over the client-facing {@link ClientConnection} and its implementations.</p>
+ *
+ * <p>Instances are immutable snapshots. They are resolved once per connection and only resolved again when the
+ * provider metadata of the connection changes; configuration changes create a new connection.</p>
  */
 public record ResolvedOidcConnection(
         String name,
@@ -36,27 +43,55 @@ public record ResolvedOidcConnection(
         List<String> scopes,
         List<String> additionalAuthorizationParameters,
         java.net.URI jwkSetURL,
-        String issuer
+        String issuer,
+        @NotNull ParsedClientParameters parameters
     ) {
+
+    public ResolvedOidcConnection(String name, String authorizationEndpoint, String tokenEndpoint, String clientId,
+                                  String clientSecret, List<String> scopes, List<String> additionalAuthorizationParameters,
+                                  URI jwkSetURL, String issuer) {
+        this(name, authorizationEndpoint, tokenEndpoint, clientId, clientSecret, scopes, additionalAuthorizationParameters,
+                jwkSetURL, issuer, new ParsedClientParameters(clientId, clientSecret, authorizationEndpoint, tokenEndpoint));
+    }
     
     public static @NotNull ResolvedOidcConnection resolve(@NotNull ClientConnection connection) {
         
         if ( connection instanceof OidcConnectionImpl impl ) {
-            return new ResolvedOidcConnection(
-                    connection.name(), 
-                    impl.authorizationEndpoint(), 
-                    impl.tokenEndpoint(),
-                    impl.clientId(), 
-                    impl.clientSecret(), 
-                    Arrays.asList(impl.scopes()),
-                    Arrays.asList(impl.additionalAuthorizationParameters()),
-                    impl.jwkSetURL(),
-                    impl.issuer()
-                );
+            return impl.resolved().oidc();
         }
         throw new IllegalArgumentException(String.format("Unable to resolve %s (name=%s) of type %s", 
                 ClientConnection.class.getSimpleName(), connection.name(), connection.getClass().getName()));
 
     }
 
+    /**
+     * @return the client id
+     */
+    public @NotNull ClientID clientID() {
+        return parameters.clientID();
+    }
+
+    /**
+     * @return the credentials used to authenticate the client at the token endpoint
+     */
+    public @NotNull ClientSecretBasic clientCredentials() {
+        return parameters.clientCredentials();
+    }
+
+    /**
+     * @return the authorization endpoint
+     * @throws IllegalArgumentException if the configured authorization endpoint is not a valid URI
+     */
+    public @NotNull URI authorizationEndpointURI() {
+        return parameters.authorizationEndpointURI();
+    }
+
+    /**
+     * @return the token endpoint
+     * @throws URISyntaxException if the configured token endpoint is not a valid URI
+     */
+    public @NotNull URI tokenEndpointURI() throws URISyntaxException {
+        return parameters.tokenEndpointURI();
+    }
+
 }
@@ -26,8 +26,10 @@ import org.apache.sling.jcr.resource.api.JcrResourceConstants;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 import org.slf4j.Logger;
@@ -41,6 +43,8 @@ import java.io.File;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Hashtable;
+import java.util.Map;
 
 @Component(
         service = LoginCookieManager.class,
@@ -53,9 +57,40 @@ public class SlingLoginCookieManager implements LoginCookieManager {
 
     private static final Logger log = LoggerFactory.getLogger(SlingLoginCookieManager.class);
 
+    /**
+     * Credentials attribute holding the expiry time of the login cookie the credentials were created from
+     */
+    static final String ATTR_COOKIE_EXPIRES = ".cookieExpires";
+
+    /**
+     * Minimum time between two renewals of the login cookie for the same user, so that concurrent
+     * requests sent with the old cookie do not all receive a new one
+     */
+    private static final long RENEWAL_THROTTLE_MSEC = 60 * 1000L;
+
+    /**
+     * Maximum number of users whose recent renewal is remembered, beyond which the least recently renewed are forgotten
+     */
+    private static final int MAX_RECENT_RENEWALS = 10000;
+
     private final TokenStore tokenStore;
     private final long sessionTimeout;
     private final String cookieName;
+    private final CookieFormat cookieFormat;
+    private final @Nullable VerifiedCookieCache verifiedCookieCache;
+    private final long renewalThreshold;
+    private final BoundedCache<String, Long> recentRenewals = new BoundedCache<>(MAX_RECENT_RENEWALS);
+    private final @Nullable ServiceRegistration<LoginCookieRejectionsMBean> rejectionsRegistration;
+
+    /**
+     * The format used for issuing login cookies. Cookies in all formats are accepted.
+     */
+    enum CookieFormat {
+        /** Base64 encoded hex HMAC, token number, expiry time and user id separated by '@' */
+        LEGACY,
+        /** Base64url encoded versioned binary format, see {@link TokenStore#encodeCompact(long, String)} */
+        COMPACT
+    }
 
     @ObjectClassDefinition(
             name = "Apache Sling Token Update Configuration for OIDC Authentication Handler",
@@ -78,19 +113,128 @@ public class SlingLoginCookieManager implements LoginCookieManager {
         @AttributeDefinition(name = "cookieName",
                 description = "Cookie Name")
         String cookieName() default "sling.oidcauth";
+
+        @AttributeDefinition(name = "cookieFormat",
+                description = "Format of issued login cookies. Cookies in both formats are accepted, so that " +
+                        "switching the format does not invalidate existing sessions")
+        CookieFormat cookieFormat() default CookieFormat.LEGACY;
+
+        @AttributeDefinition(name = "cookieCacheSize",
+                description = "Maximum number of verified login cookies kept in memory, so that repeated requests " +
+                        "with the same cookie are not validated again. 0 disables the cache")
+        int cookieCacheSize() default 0;
+
+        @AttributeDefinition(name = "cookieCacheTimeout",
+                description = "Time in milliseconds a verified login cookie is kept in memory, at most until the cookie expires")
+        long cookieCacheTimeout() default 60 * 1000;
+
+        @AttributeDefinition(name = "tokenRedisUrl",
+                description = "URL of a Redis server to share the tokens for signing login cookies between instances, " +
+                        "so that cookies issued by one instance are accepted by all of them. If empty, the tokens " +
+                        "are stored in the token file. Anyone who can read the tokens from Redis, its replicas or " +
+                        "its backups can forge login cookies for any user, unless tokenRedisEncryptionKey is set")
+        String tokenRedisUrl() default "";
+
+        @AttributeDefinition(name = "tokenRedisClusterNodes",
+                description = "URLs of the nodes of a Redis Cluster to share the tokens in, used instead of tokenRedisUrl. " +
+                        "The credentials of the first URL are used for all nodes")
+        String[] tokenRedisClusterNodes() default {};
+
+        @AttributeDefinition(name = "tokenRedisSentinelMaster",
+                description = "Name of the Redis master monitored by the tokenRedisSentinelNodes to share the tokens in, " +
+                        "used instead of tokenRedisUrl")
+        String tokenRedisSentinelMaster() default "";
+
+        @AttributeDefinition(name = "tokenRedisSentinelNodes",
+                description = "URLs of the Redis Sentinels monitoring the tokenRedisSentinelMaster. The credentials of the " +
+                        "first URL are used for the Sentinels and the master")
+        String[] tokenRedisSentinelNodes() default {};
+
+        @AttributeDefinition(name = "tokenRedisEncryptionKey",
+                description = "Secret from which the key for encrypting the tokens stored in Redis is derived. It must be " +
+                        "the same on all instances. If empty, the tokens are stored unencrypted")
+        String tokenRedisEncryptionKey() default "";
+
+        @AttributeDefinition(name = "tokenRedisMigrateUnencrypted",
+                description = "Accept unencrypted tokens stored in Redis before tokenRedisEncryptionKey was set, and " +
+                        "encrypt them with the next rotation. Only enable this while migrating, as anyone who can write " +
+                        "to Redis can then plant tokens and forge login cookies")
+        boolean tokenRedisMigrateUnencrypted() default false;
+
+        @AttributeDefinition(name = "tokenSyncInterval",
+                description = "Interval in milliseconds for picking up tokens rotated by other instances from Redis")
+        long tokenSyncInterval() default 10 * 1000;
+
+        @AttributeDefinition(name = "sessionRenewalFraction",
+                description = "Enables sliding sessions: the login cookie is renewed once its remaining lifetime drops " +
+                        "below this fraction of the session timeout, e.g. 0.5 for half of it. 0 disables renewal")
+        double sessionRenewalFraction() default 0;
     }
 
     @Activate
     public SlingLoginCookieManager(SlingLoginCookieManagerConfig config, BundleContext bundleContext)
             throws InvalidKeyException, NoSuchAlgorithmException, IllegalStateException {
-        final String tokenFileName = config.tokenFile();
-        final File tokenFile = getTokenFile(tokenFileName, bundleContext);
         final boolean fastSeed = config.form_token_fastseed();
-        log.info("Storing tokens in {}", tokenFile.getAbsolutePath());
+        final KeyRingStore keyRingStore;
+        if (isRedisConfigured(config)) {
+            KeyRingStore redisStore = RedisKeyRingStore.create(orEmpty(config.tokenRedisUrl()), orEmpty(config.tokenRedisClusterNodes()),
+                    orEmpty(config.tokenRedisSentinelMaster()), orEmpty(config.tokenRedisSentinelNodes()));
+            String encryptionKey = config.tokenRedisEncryptionKey();
+            if (encryptionKey != null && !encryptionKey.isEmpty()) {
+                keyRingStore = new EncryptingKeyRingStore(redisStore, encryptionKey, config.tokenRedisMigrateUnencrypted());
+                if (config.tokenRedisMigrateUnencrypted()) {
+                    log.warn("Accepting unencrypted tokens for signing login cookies from {}, disable " +
+                            "tokenRedisMigrateUnencrypted once they have been rotated", redisStore);
+                }
+            } else {
+                keyRingStore = redisStore;
+                log.warn("The tokens for signing login cookies are stored unencrypted in {}. Anyone who can read them can " +
+                        "forge login cookies, set tokenRedisEncryptionKey to encrypt them.", redisStore);
+            }
+            log.info("Sharing tokens in {}", keyRingStore);
+        } else {
+            final File tokenFile = getTokenFile(config.tokenFile(), bundleContext);
+            keyRingStore = new FileKeyRingStore(tokenFile);
+            log.info("Storing tokens in {}", tokenFile.getAbsolutePath());
+        }
 
         this.sessionTimeout = config.sessionTimeout();
         this.cookieName = config.cookieName();
-        this.tokenStore = new TokenStore(tokenFile, sessionTimeout, fastSeed);
+        this.cookieFormat = config.cookieFormat() != null ? config.cookieFormat() : CookieFormat.LEGACY;
+        double renewalFraction = config.sessionRenewalFraction();
+        if (renewalFraction < 0 || renewalFraction > 1) {
+            renewalFraction = Math.min(Math.max(renewalFraction, 0), 1);
+            log.warn("sessionRenewalFraction {} is outside of [0, 1], using {}", config.sessionRenewalFraction(), renewalFraction);
+        }
+        this.renewalThreshold = (long) (sessionTimeout * renewalFraction);
+        this.tokenStore = new TokenStore(keyRingStore, sessionTimeout, fastSeed, config.tokenSyncInterval());
+        this.verifiedCookieCache = config.cookieCacheSize() > 0 && config.cookieCacheTimeout() > 0
+                ? new VerifiedCookieCache(tokenStore, config.cookieCacheSize(), config.cookieCacheTimeout())
+                : null;
+        this.rejectionsRegistration = bundleContext.registerService(LoginCookieRejectionsMBean.class,
+                tokenStore.rejections(), new Hashtable<>(Map.of("jmx.objectname", LoginCookieRejectionsMBean.OBJECT_NAME)));
+    }
+
+    private static boolean isRedisConfigured(@NotNull SlingLoginCookieManagerConfig config) {
+        return !orEmpty(config.tokenRedisUrl()).isEmpty()
+                || orEmpty(config.tokenRedisClusterNodes()).length > 0
+                || !orEmpty(config.tokenRedisSentinelMaster()).isEmpty();
+    }
+
+    private static @NotNull String orEmpty(@Nullable String value) {
+        return value != null ? value : "";
+    }
+
+    private static @NotNull String[] orEmpty(@Nullable String[] values) {
+        return values != null ? values : new String[0];
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        if (rejectionsRegistration != null) {
+            rejectionsRegistration.unregister();
+        }
+        tokenStore.close();
     }
     
     @Override
@@ -98,15 +242,20 @@ public class SlingLoginCookieManager implements LoginCookieManager {
                                @NotNull SlingRepository repository, @NotNull Credentials creds) {
 
         long expires = System.currentTimeMillis() + this.sessionTimeout;
+        String userId = ((OidcAuthCredentials)creds).getUserId();
 
         // get current authentication data, may be missing after first login
-        String authData = null;
-        try {
-            authData = tokenStore.encode(expires, ((OidcAuthCredentials)creds).getUserId());
-        } catch (NoSuchAlgorithmException|InvalidKeyException e) {
-            throw new RuntimeException(e);
-        } 
-        String cookieValue = Base64.encodeBase64URLSafeString(authData.getBytes(StandardCharsets.UTF_8));
+        byte[] authData;
+        if (cookieFormat == CookieFormat.COMPACT) {
+            authData = tokenStore.encodeCompact(expires, userId);
+        } else {
+            try {
+                authData = tokenStore.encode(expires, userId).getBytes(StandardCharsets.UTF_8);
+            } catch (NoSuchAlgorithmException|InvalidKeyException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        String cookieValue = Base64.encodeBase64URLSafeString(authData);
         setCookie(request, response, cookieName, cookieValue, (int) (sessionTimeout / 1000));
     }
 
@@ -120,13 +269,55 @@ public class SlingLoginCookieManager implements LoginCookieManager {
         if (cookieValue.isEmpty()) {
             return null;
         }
-        String decodedCookieValue = new String(Base64.decodeBase64(cookieValue), StandardCharsets.UTF_8);
-        if (tokenStore.isValid(decodedCookieValue)) {
-            return createAuthInfo(decodedCookieValue);
+        if (verifiedCookieCache != null) {
+            LoginCookie cachedLoginCookie = verifiedCookieCache.get(cookieValue);
+            if (cachedLoginCookie != null) {
+                return createAuthInfo(cachedLoginCookie);
+            }
+        }
+        byte[] decodedCookieValue = Base64.decodeBase64(cookieValue);
+        LoginCookie loginCookie;
+        if (decodedCookieValue.length > 0 && decodedCookieValue[0] == TokenStore.COMPACT_FORMAT_VERSION) {
+            loginCookie = tokenStore.validate(decodedCookieValue);
+        } else {
+            loginCookie = tokenStore.validate(new String(decodedCookieValue, StandardCharsets.UTF_8));
+        }
+        if (loginCookie != null) {
+            if (verifiedCookieCache != null) {
+                verifiedCookieCache.put(cookieValue, loginCookie);
+            }
+            return createAuthInfo(loginCookie);
         }
         return null;
     }
 
+    @Override
+    public void renewLoginCookie(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response,
+                                 @NotNull SlingRepository repository, @NotNull AuthenticationInfo authInfo) {
+        if (renewalThreshold <= 0) {
+            return;
+        }
+        Object creds = authInfo.get(JcrResourceConstants.AUTHENTICATION_INFO_CREDENTIALS);
+        if (!(creds instanceof OidcAuthCredentials oidcAuthCredentials)
+                || !(oidcAuthCredentials.getAttribute(ATTR_COOKIE_EXPIRES) instanceof String cookieExpires)) {
+            return;
+        }
+        long expires = Long.parseLong(cookieExpires);
+        long now = System.currentTimeMillis();
+        if (expires - now > renewalThreshold || !acquireRenewal(oidcAuthCredentials.getUserId(), now)) {
+            return;
+        }
+        log.debug("Renewing login cookie of user {} expiring in {}ms", oidcAuthCredentials.getUserId(), expires - now);
+        setLoginCookie(request, response, repository, oidcAuthCredentials);
+    }
+
+    /**
+     * @return <code>false</code> if the login cookie of the user was renewed recently
+     */
+    private boolean acquireRenewal(@NotNull String userId, long now) {
+        return recentRenewals.putIfAbsent(userId, now, now + RENEWAL_THROTTLE_MSEC, now);
+    }
+
     @Override
     public @Nullable Cookie getLoginCookie(@NotNull HttpServletRequest request) {
         Cookie[] cookies = request.getCookies();
@@ -141,14 +332,11 @@ public class SlingLoginCookieManager implements LoginCookieManager {
         return null;
     }
 
-    private @Nullable AuthenticationInfo createAuthInfo(@NotNull final String authData) {
-        final String userId = getUserId(authData);
-        if (userId == null) {
-            return null;
-        }
-
+    private @NotNull AuthenticationInfo createAuthInfo(@NotNull final LoginCookie loginCookie) {
+        String userId = loginCookie.userId();
         OidcAuthCredentials credentials = new OidcAuthCredentials(userId, "oidc");
         credentials.setAttribute(".token", "");
+        credentials.setAttribute(ATTR_COOKIE_EXPIRES, String.valueOf(loginCookie.expires()));
 
         AuthenticationInfo authInfo = new AuthenticationInfo("oidc", userId);
         authInfo.put(JcrResourceConstants.AUTHENTICATION_INFO_CREDENTIALS, credentials);
@@ -156,14 +344,6 @@ public class SlingLoginCookieManager implements LoginCookieManager {
         return authInfo;
     }
 
-    private @Nullable String getUserId(@NotNull final String authData) {
-        String[] parts = TokenStore.split(authData);
-        if (parts.length == 3) {
-            return parts[2];
-        }
-        return null;
-    }
-
     private static void setCookie(@NotNull final HttpServletRequest request, @NotNull final HttpServletResponse response, 
                            @NotNull final String name, @NotNull final String value, final int maxAge) {
         // set the cookie
@@ -27,6 +27,7 @@ import org.jetbrains.annotations.NotNull;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,7 +40,7 @@ public class TokenAccessImpl implements OAuthTokenAccess {
     private final OAuthTokenRefresher tokenRefresher;
     
     @Activate
-    public TokenAccessImpl(@Reference OAuthTokenStore tokenStore, @Reference OAuthTokenRefresher tokenRefresher) {
+    public TokenAccessImpl(@Reference(policyOption = ReferencePolicyOption.GREEDY) OAuthTokenStore tokenStore, @Reference OAuthTokenRefresher tokenRefresher) {
         this.tokenStore = tokenStore;
         this.tokenRefresher = tokenRefresher;
     }
@@ -48,7 +49,8 @@ public class TokenAccessImpl implements OAuthTokenAccess {
     public @NotNull OAuthTokenResponse getAccessToken(@NotNull ClientConnection connection, @NotNull SlingHttpServletRequest request, @NotNull String redirectPath) {
         
         ResourceResolver resolver = request.getResourceResolver();
-        OAuthToken token = tokenStore.getAccessToken(connection, resolver);
+        StoredTokens tokens = tokenStore.getTokens(connection, resolver);
+        OAuthToken token = tokens.accessToken();
         
         if (logger.isDebugEnabled()) {
             logger.debug("Accessing token for connection {} and user {}", connection.name(), request.getUserPrincipal());
@@ -63,8 +65,8 @@ public class TokenAccessImpl implements OAuthTokenAccess {
         
         // expired token but refresh token present -> refresh and return
         if (token.getState() == TokenState.EXPIRED) {
-            OAuthToken refreshToken = tokenStore.getRefreshToken(connection, resolver);
-            if (refreshToken.getState() == TokenState.VALID) {
+            OAuthToken refreshToken = tokens.refreshToken();
+            if (refreshToken != null && refreshToken.getState() == TokenState.VALID) {
                 if (logger.isDebugEnabled()) {
                     logger.debug("Refreshing expired access token for connection {} and user {}", connection.name(), request.getUserPrincipal());
                 }
@@ -17,27 +17,38 @@
  */
 package org.apache.sling.auth.oauth_client.impl;
 
+import org.apache.sling.auth.oauth_client.impl.LoginCookieRejections.Reason;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * The <code>TokenStore</code> class provides the secure token hash
@@ -72,38 +83,97 @@ class TokenStore {
     /** The number of secret keys in the token buffer currentTokens */
     private static final int TOKEN_BUFFER_SIZE = 5;
 
+    /**
+     * Default interval for synchronizing the tokens with a shared store (in ms)
+     */
+    private static final long DEFAULT_SYNC_INTERVAL = 10 * 1000L;
+
+    /** The length of the HMAC in bytes */
+    private static final int HMAC_LENGTH = 32;
+
+    /** The length of the hex encoded HMAC at the start of a cookie value */
+    private static final int HMAC_HEX_LENGTH = 2 * HMAC_LENGTH;
+
+    /**
+     * Version marker, the first byte of a cookie value in the compact format. It
+     * can never be mistaken for the first byte of a legacy cookie value, which is
+     * a hex digit.
+     */
+    static final byte COMPACT_FORMAT_VERSION = 1;
+
+    /** Offset of the token number in a cookie value in the compact format */
+    private static final int COMPACT_TOKEN_OFFSET = 1 + HMAC_LENGTH;
+
+    /** The maximum number of decimal digits of a positive <code>long</code> value */
+    private static final int MAX_LONG_DIGITS = 19;
+
+    /**
+     * Per-thread scratch buffer used to feed the cookie payload to the HMAC and to
+     * receive the HMAC result without allocating.
+     */
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[256]);
+
     public final Logger log = LoggerFactory.getLogger(TokenStore.class);
 
+    /**
+     * Counts and logs the rejected cookies
+     */
+    private final LoginCookieRejections rejections = new LoginCookieRejections();
+
     /**
      * The ttl of the cookie before it becomes invalid (in ms)
      */
     private final long ttl;
 
     /**
-     * The time when a new token should be created.
+     * The ring of tokens used to encrypt. The ring is immutable and replaced
+     * atomically when a new token is created.
+     */
+    private final AtomicReference<KeyRing> keyRing;
+
+    /**
+     * Set while a write of the token file is scheduled but has not started yet.
+     */
+    private final AtomicBoolean savePending = new AtomicBoolean();
+
+    /**
+     * Single background thread persisting the tokens, so that creating a new
+     * token never blocks on the file system.
      */
-    private long nextUpdate = System.currentTimeMillis();
+    private final ThreadPoolExecutor tokenWriter;
 
     /**
-     * The location of the current token.
+     * Periodically synchronizes the tokens with a shared store, <code>null</code>
+     * if the store is not shared.
      */
-    private volatile int currentToken = 0;
+    private final @Nullable ScheduledExecutorService tokenSynchronizer;
 
     /**
-     * A ring of tokens used to encrypt.
+     * The time in ms by which new tokens are published to a shared store
+     * before they are used.
      */
-    private AtomicReferenceArray<SecretKey> currentTokens;
+    private final long rotationLead;
 
     /**
-     * A secure random used for generating new tokens.
+     * The serialized tokens as last read from or written to a shared store.
      */
-    private final SecureRandom random;
+    private volatile @Nullable byte[] storedTokens;
 
-    /** The token file to persist the secure tokens */
-    private final File tokenFile;
+    /**
+     * Serializes the access to the store, separately from the creation of the
+     * first token, so that slow store operations never hold a lock needed on the
+     * request path.
+     */
+    private final Object persistenceLock = new Object();
 
-    /** A temporary file used to update the secure token file */
-    private final File tmpTokenFile;
+    /**
+     * A secure random used for generating new tokens, seeded in the background
+     * as seeding may take a long time on some systems.
+     */
+    private final CompletableFuture<SecureRandom> random;
+
+    /** The store to persist the secure tokens */
+    private final KeyRingStore keyRingStore;
 
     /**
      * @throws NoSuchAlgorithmException
@@ -112,16 +182,78 @@ class TokenStore {
      */
     TokenStore(@NotNull final File tokenFile, final long sessionTimeout,
                final boolean fastSeed) throws NoSuchAlgorithmException, InvalidKeyException, IllegalStateException {
+        this(new FileKeyRingStore(tokenFile), sessionTimeout, fastSeed, 0);
+    }
+
+    /**
+     * @param keyRingStore the store to persist the tokens
+     * @param sessionTimeout the ttl of the cookies in milliseconds
+     * @param fastSeed whether to seed the secure random from fast entropy sources
+     * @param syncInterval the interval in milliseconds for synchronizing the tokens with a
+     *      {@link KeyRingStore#isShared() shared} store
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeyException
+     * @throws IllegalStateException
+     */
+    TokenStore(@NotNull final KeyRingStore keyRingStore, final long sessionTimeout, final boolean fastSeed,
+               final long syncInterval) throws NoSuchAlgorithmException, InvalidKeyException, IllegalStateException {
+        this(keyRingStore, sessionTimeout, fastSeed, syncInterval, SecureRandom.getInstance(SHA1PRNG));
+    }
+
+    /**
+     * @param secureRandom the unseeded secure random used for generating new tokens
+     */
+    TokenStore(@NotNull final KeyRingStore keyRingStore, final long sessionTimeout, final boolean fastSeed,
+               final long syncInterval, @NotNull final SecureRandom secureRandom)
+            throws NoSuchAlgorithmException, InvalidKeyException, IllegalStateException {
 
-        this.random = SecureRandom.getInstance(SHA1PRNG);
         this.ttl = sessionTimeout;
-        this.tokenFile = tokenFile;
-        this.tmpTokenFile = new File(tokenFile + ".tmp");
+        this.keyRingStore = keyRingStore;
+        this.tokenWriter = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "sling-oidc-token-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // fail early if the algorithm is not available
+        Mac.getInstance(HMAC_SHA256);
+
+        // seed the secure random and warm up the crypto API in the background, only
+        // creating a new token has to wait for it
+        this.random = CompletableFuture.supplyAsync(() -> initRandom(secureRandom, fastSeed), tokenWriter);
 
         // prime the secret keys from persistence
-        loadTokens();
+        this.keyRing = new AtomicReference<>(loadTokens());
+
+        if (keyRingStore.isShared()) {
+            // create the first token upfront, so that all instances agree on it
+            initializeTokens();
+
+            this.tokenSynchronizer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "sling-oidc-token-synchronizer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long interval = syncInterval > 0 ? syncInterval : DEFAULT_SYNC_INTERVAL;
+            this.rotationLead = Math.min(2 * interval, rotationInterval() / 2);
+            tokenSynchronizer.scheduleWithFixedDelay(this::synchronizeTokens, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            this.tokenSynchronizer = null;
+            this.rotationLead = 0;
+            if (keyRing.get().activeKey() == null) {
+                // create the first token once the secure random is seeded, ahead of the first cookie
+                tokenWriter.execute(() -> {
+                    try {
+                        initializeTokens();
+                    } catch (RuntimeException e) {
+                        log.warn("Failed to create the first cookie key: {}", e.getMessage());
+                    }
+                });
+            }
+        }
+    }
 
-        // warm up the crypto API
+    private @NotNull SecureRandom initRandom(@NotNull SecureRandom random, boolean fastSeed) {
         if (fastSeed) {
             random.setSeed(getFastEntropy());
         } else {
@@ -134,11 +266,33 @@ class TokenStore {
         }
         byte[] b = new byte[20];
         random.nextBytes(b);
-        final SecretKey secretKey = new SecretKeySpec(b, HMAC_SHA256);
-        final Mac m = Mac.getInstance(HMAC_SHA256);
-        m.init(secretKey);
-        m.update(UTF_8.getBytes(StandardCharsets.UTF_8));
-        m.doFinal();
+        try {
+            final Mac m = Mac.getInstance(HMAC_SHA256);
+            m.init(new SecretKeySpec(b, HMAC_SHA256));
+            m.update(UTF_8.getBytes(StandardCharsets.UTF_8));
+            m.doFinal();
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new IllegalStateException("Unable to initialise " + HMAC_SHA256, e);
+        }
+        return random;
+    }
+
+    /**
+     * Waits for pending writes of the tokens, stops the background threads and closes the store.
+     */
+    void close() {
+        if (tokenSynchronizer != null) {
+            tokenSynchronizer.shutdownNow();
+        }
+        tokenWriter.shutdown();
+        try {
+            if (!tokenWriter.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.warn("Timed out waiting for the tokens to be written to {}", keyRingStore);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        keyRingStore.close();
     }
 
     /**
@@ -151,24 +305,70 @@ class TokenStore {
      */
     @NotNull String encode(final long expires, final @NotNull String userId)
             throws IllegalStateException, NoSuchAlgorithmException, InvalidKeyException {
-        int token = getActiveToken();
-        SecretKey key = currentTokens.get(token);
-        return encode(expires, userId, token, key);
+        KeyRing ring = getActiveRing();
+        int token = ring.activeToken();
+        return encode(expires, userId, token, ring.key(token));
     }
 
     private static @NotNull String encode(final long expires, final @NotNull String userId,
-                                          final int token, final @NotNull SecretKey key) throws IllegalStateException,
-            NoSuchAlgorithmException, InvalidKeyException {
+                                          final int token, final @NotNull HmacKey key) {
 
         String cookiePayload = token + String.valueOf(expires)
             + "@" + userId;
-        Mac m = Mac.getInstance(HMAC_SHA256);
-        m.init(key);
-        m.update(cookiePayload.getBytes(StandardCharsets.UTF_8));
-        String cookieValue = byteToHex(m.doFinal());
+        String cookieValue = byteToHex(key.mac().doFinal(cookiePayload.getBytes(StandardCharsets.UTF_8)));
         return cookieValue + "@" + cookiePayload;
     }
 
+    /**
+     * Encodes a cookie value in the compact binary format:
+     * <ol>
+     * <li>the format version, one byte</li>
+     * <li>the raw HMAC of all other fields, 32 bytes</li>
+     * <li>the token number, one byte</li>
+     * <li>the expiry time, as unsigned variable-length integer (7 bits per byte, least significant first)</li>
+     * <li>the user id, UTF-8 encoded, up to the end of the value</li>
+     * </ol>
+     *
+     * @param expires the expiry time in milliseconds since the epoch
+     * @param userId the user id
+     * @return the encoded cookie value
+     */
+    @NotNull byte[] encodeCompact(final long expires, final @NotNull String userId) {
+        KeyRing ring = getActiveRing();
+        int token = ring.activeToken();
+        byte[] user = userId.getBytes(StandardCharsets.UTF_8);
+        byte[] value = new byte[COMPACT_TOKEN_OFFSET + 1 + varintLength(expires) + user.length];
+        value[0] = COMPACT_FORMAT_VERSION;
+        value[COMPACT_TOKEN_OFFSET] = (byte) token;
+        int pos = COMPACT_TOKEN_OFFSET + 1;
+        long remaining = expires;
+        while ((remaining & ~0x7FL) != 0) {
+            value[pos++] = (byte) ((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        value[pos++] = (byte) remaining;
+        System.arraycopy(user, 0, value, pos, user.length);
+
+        Mac mac = ring.key(token).mac();
+        mac.update(value, 0, 1);
+        mac.update(value, COMPACT_TOKEN_OFFSET, value.length - COMPACT_TOKEN_OFFSET);
+        try {
+            mac.doFinal(value, 1);
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e);
+        }
+        return value;
+    }
+
+    private static int varintLength(long value) {
+        int length = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
     /**
      * Splits the authentication data into the three parts packed together while
      * encoding the cookie.
@@ -198,149 +398,443 @@ class TokenStore {
      * </ul>
      * <p>
      * Otherwise, the method returns <code>false</code>.
+     * <p>
+     * The value is parsed in a single pass and the HMAC is computed over the payload
+     * in place and compared in constant time, so that no intermediate strings are created.
      */
     boolean isValid(@NotNull String value) {
-        String[] parts = split(value);
-        if (parts.length != 3) {
-            log.error("AuthNCookie value '{}' has invalid format", value);
-            return false;
+        return validate(value) != null;
+    }
+
+    /**
+     * Validates a cookie value in the legacy format, as described in {@link #isValid(String)}.
+     *
+     * @param value the decoded cookie value
+     * @return the validated login cookie or <code>null</code> if the value is not valid
+     */
+    @Nullable LoginCookie validate(@NotNull String value) {
+        int firstSeparator = value.indexOf('@');
+        int secondSeparator = firstSeparator < 0 ? -1 : value.indexOf('@', firstSeparator + 1);
+        if (firstSeparator != HMAC_HEX_LENGTH || secondSeparator < firstSeparator + 3
+                || secondSeparator == value.length() - 1 || value.indexOf('@', secondSeparator + 1) >= 0) {
+            rejections.reject(Reason.INVALID_FORMAT);
+            return null;
         }
 
         // single digit token number
-        int tokenNumber = parts[1].charAt(0) - '0';
-        if (tokenNumber < 0 || tokenNumber >= currentTokens.length()) {
-            log.error("AuthNCookie value '{}' is invalid: refers to an invalid token number {}", value, tokenNumber);
-            return false;
+        int tokenNumber = value.charAt(firstSeparator + 1) - '0';
+        if (tokenNumber < 0 || tokenNumber >= TOKEN_BUFFER_SIZE) {
+            rejections.reject(Reason.INVALID_FORMAT);
+            return null;
+        }
+
+        long cookieTime = parseExpiry(value, firstSeparator + 2, secondSeparator);
+        if (cookieTime < 0) {
+            rejections.reject(Reason.INVALID_FORMAT);
+            return null;
+        }
+        if (isExpired(cookieTime)) {
+            rejections.reject(Reason.EXPIRED);
+            return null;
+        }
+
+        HmacKey secretKey = keyRing.get().key(tokenNumber);
+        if ( secretKey == null ) {
+            rejections.reject(Reason.UNKNOWN_KEY);
+            return null;
+        }
+
+        if (hmacMatches(secretKey.mac(), value, firstSeparator)) {
+            return new LoginCookie(value.substring(secondSeparator + 1), cookieTime, tokenNumber, secretKey.generation);
+        }
+        rejections.reject(Reason.INVALID_SIGNATURE);
+        return null;
+    }
+
+    /**
+     * Validates a cookie value in the compact format, as written by {@link #encodeCompact(long, String)}.
+     * The value is parsed in a single pass and the HMAC is compared in constant time.
+     *
+     * @param value the decoded cookie value
+     * @return the validated login cookie or <code>null</code> if the value is not valid
+     */
+    @Nullable LoginCookie validate(@NotNull byte[] value) {
+        // version, HMAC, token number, at least one byte of expiry time and user id
+        if (value.length < COMPACT_TOKEN_OFFSET + 3 || value[0] != COMPACT_FORMAT_VERSION) {
+            rejections.reject(Reason.INVALID_FORMAT);
+            return null;
         }
 
-        long cookieTime = Long.parseLong(parts[1].substring(1));
+        int tokenNumber = value[COMPACT_TOKEN_OFFSET] & 0xFF;
+        if (tokenNumber >= TOKEN_BUFFER_SIZE) {
+            rejections.reject(Reason.INVALID_FORMAT);
+            return null;
+        }
+
+        long cookieTime = 0;
+        int pos = COMPACT_TOKEN_OFFSET + 1;
+        for (int shift = 0; ; shift += 7) {
+            if (pos == value.length || shift > 63) {
+                rejections.reject(Reason.INVALID_FORMAT);
+                return null;
+            }
+            byte b = value[pos++];
+            cookieTime |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (pos == value.length) {
+            rejections.reject(Reason.INVALID_FORMAT);
+            return null;
+        }
         if (isExpired(cookieTime)) {
-            log.error("AuthNCookie value '{}' has expired {}ms ago", value, (System.currentTimeMillis() - cookieTime));
-            return false;
+            rejections.reject(Reason.EXPIRED);
+            return null;
+        }
+
+        HmacKey secretKey = keyRing.get().key(tokenNumber);
+        if ( secretKey == null ) {
+            rejections.reject(Reason.UNKNOWN_KEY);
+            return null;
         }
-        
+
+        Mac mac = secretKey.mac();
+        byte[] scratch = SCRATCH.get();
+        mac.update(value, 0, 1);
+        mac.update(value, COMPACT_TOKEN_OFFSET, value.length - COMPACT_TOKEN_OFFSET);
+        try {
+            mac.doFinal(scratch, 0);
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e);
+        }
+        int diff = 0;
+        for (int i = 0; i < HMAC_LENGTH; i++) {
+            diff |= value[1 + i] ^ scratch[i];
+        }
+        if (diff != 0) {
+            rejections.reject(Reason.INVALID_SIGNATURE);
+            return null;
+        }
+        return new LoginCookie(new String(value, pos, value.length - pos, StandardCharsets.UTF_8), cookieTime, tokenNumber,
+                secretKey.generation);
+    }
+
+    /**
+     * Parses the non-negative decimal number in <code>value</code> between <code>start</code>
+     * (inclusive) and <code>end</code> (exclusive).
+     *
+     * @return the parsed number or <code>-1</code> if the range does not contain a valid number
+     */
+    private static long parseExpiry(@NotNull String value, int start, int end) {
+        if (end - start > MAX_LONG_DIGITS) {
+            return -1;
+        }
+        long result = 0;
+        for (int i = start; i < end; i++) {
+            int digit = value.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+
+    /**
+     * Computes the HMAC of the payload following the first separator and compares it
+     * in constant time with the hex encoded HMAC preceding it.
+     */
+    private static boolean hmacMatches(@NotNull Mac mac, @NotNull String value, int separator) {
+        byte[] scratch = SCRATCH.get();
+        int payloadLength = value.length() - separator - 1;
+        if (payloadLength <= scratch.length && isAscii(value, separator + 1)) {
+            for (int i = 0; i < payloadLength; i++) {
+                scratch[i] = (byte) value.charAt(separator + 1 + i);
+            }
+            mac.update(scratch, 0, payloadLength);
+        } else {
+            mac.update(value.substring(separator + 1).getBytes(StandardCharsets.UTF_8));
+        }
+
+        int macLength = mac.getMacLength();
         try {
-            SecretKey secretKey = currentTokens.get(tokenNumber);
-            if ( secretKey == null ) {
-                log.error("AuthNCookie value '{}' points to an unknown token number", value);
+            mac.doFinal(scratch, 0);
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e);
+        }
+
+        int diff = 0;
+        for (int i = 0; i < macLength; i++) {
+            int j = scratch[i] + 128;
+            diff |= value.charAt(2 * i) ^ TOHEX[j / 0x10];
+            diff |= value.charAt(2 * i + 1) ^ TOHEX[j % 0x10];
+        }
+        return diff == 0;
+    }
+
+    private static boolean isAscii(@NotNull String value, int start) {
+        for (int i = start; i < value.length(); i++) {
+            if (value.charAt(i) >= 0x80) {
                 return false;
             }
-            String hmac = encode(cookieTime, parts[2], tokenNumber, secretKey);
-            return value.equals(hmac);
-        } catch (ArrayIndexOutOfBoundsException | InvalidKeyException | IllegalStateException | NoSuchAlgorithmException e) {
-            log.error(e.getMessage(), e);
         }
-        log.error("AuthNCookie value '{}' is invalid", value);
-        return false;
+        return true;
     }
-    
+
     private static boolean isExpired(long cookieTime) {
         return System.currentTimeMillis() >= cookieTime;
     }
 
     /**
-     * Maintain a circular buffer to tokens, and return the current one.
+     * @return the counters of rejected cookies
+     */
+    @NotNull LoginCookieRejections rejections() {
+        return rejections;
+    }
+
+    /**
+     * Returns the generation of the key currently assigned to the token number. A cookie validated
+     * with {@link LoginCookie#keyGeneration()} different from this value was signed with a key which
+     * has been rotated out of the ring in the meantime.
      *
-     * @return the current token.
-     */
-    private synchronized int getActiveToken() {
-        if (System.currentTimeMillis() > nextUpdate
-            || currentTokens.get(currentToken) == null) {
-            // cycle so that during a typical ttl the tokens get completely
-            // refreshed.
-            nextUpdate = System.currentTimeMillis() + ttl
-                / (currentTokens.length() - 1);
-            byte[] b = new byte[20];
-            random.nextBytes(b);
-
-            SecretKey newToken = new SecretKeySpec(b, HMAC_SHA256);
-            int nextToken = currentToken + 1;
-            if (nextToken == currentTokens.length()) {
-                nextToken = 0;
+     * @param tokenNumber the token number
+     * @return the key generation or <code>-1</code> if there is no key for the token number
+     */
+    long keyGeneration(int tokenNumber) {
+        if (tokenNumber < 0 || tokenNumber >= TOKEN_BUFFER_SIZE) {
+            return -1;
+        }
+        HmacKey key = keyRing.get().key(tokenNumber);
+        return key != null ? key.generation : -1;
+    }
+
+    /**
+     * Maintain a circular buffer to tokens, and return it with the current one
+     * being the active token.
+     * <p>
+     * New tokens are created without locking: the ring is immutable and the
+     * rotated ring is swapped in atomically, the token file is written in the
+     * background. Tokens in a shared store are rotated by the background
+     * synchronization instead, so that all instances agree on the new token.
+     *
+     * @return the current ring of tokens.
+     */
+    private @NotNull KeyRing getActiveRing() {
+        while (true) {
+            KeyRing current = keyRing.get();
+            if (current.activeKey() == null) {
+                return initializeTokens();
+            }
+            if (tokenSynchronizer != null || System.currentTimeMillis() <= current.nextUpdate()) {
+                return current;
+            }
+            KeyRing rotated = rotate(current);
+            if (keyRing.compareAndSet(current, rotated)) {
+                scheduleSave();
+                return rotated;
             }
-            currentTokens.set(nextToken, newToken);
-            currentToken = nextToken;
-            saveTokens();
         }
-        return currentToken;
     }
 
     /**
-     * Stores the current set of tokens to the token file
+     * Creates the first token. A token in a shared store is persisted before any
+     * cookie is issued, so that all instances agree on it, a token in a local
+     * store is written in the background.
+     *
+     * @return the ring with the first token
      */
-    private void saveTokens() {
-            File parent = tokenFile.getAbsoluteFile().getParentFile();
-            log.info("Token File {} parent {} ", tokenFile, parent);
-            if (!parent.exists()) {
-                parent.mkdirs();
+    private synchronized @NotNull KeyRing initializeTokens() {
+        KeyRing current = keyRing.get();
+        if (current.activeKey() != null) {
+            return current;
+        }
+        KeyRing rotated = rotate(current);
+        if (!keyRingStore.isShared()) {
+            keyRing.set(rotated);
+            scheduleSave();
+            return rotated;
+        }
+        if (!saveTokens(rotated)) {
+            // another instance may have created the first token concurrently
+            KeyRing loaded = loadTokens();
+            if (loaded.activeKey() != null) {
+                keyRing.set(loaded);
+                return loaded;
             }
-        try (DataOutputStream keyOutputStream = new DataOutputStream(new FileOutputStream(tmpTokenFile))) {
-            keyOutputStream.writeInt(currentToken);
-            keyOutputStream.writeLong(nextUpdate);
-            for (int i = 0; i < currentTokens.length(); i++) {
-                if (currentTokens.get(i) == null) {
-                    keyOutputStream.writeInt(0);
-                } else {
-                    keyOutputStream.writeInt(1);
-                    byte[] b = currentTokens.get(i).getEncoded();
-                    keyOutputStream.writeInt(b.length);
-                    keyOutputStream.write(b);
-                }
+            // the store is not available, continue with a local token until it is
+        }
+        keyRing.set(rotated);
+        return rotated;
+    }
+
+    private @NotNull KeyRing rotate(@NotNull KeyRing current) {
+        return rotate(current, System.currentTimeMillis());
+    }
+
+    /**
+     * @param activeFrom the time from which the new token is used to encode cookies
+     */
+    private @NotNull KeyRing rotate(@NotNull KeyRing current, long activeFrom) {
+        long nextUpdate = activeFrom + rotationInterval();
+        byte[] b = new byte[20];
+        random.join().nextBytes(b);
+        return current.rotate(new HmacKey(new SecretKeySpec(b, HMAC_SHA256)), nextUpdate, activeFrom);
+    }
+
+    private long rotationInterval() {
+        // cycle so that during a typical ttl the tokens get completely
+        // refreshed.
+        return ttl / (TOKEN_BUFFER_SIZE - 1);
+    }
+
+    /**
+     * Schedules writing the current set of tokens to the token file, unless a
+     * write is already scheduled.
+     */
+    private void scheduleSave() {
+        if (savePending.compareAndSet(false, true)) {
+            try {
+                tokenWriter.execute(() -> {
+                    savePending.set(false);
+                    saveTokens(keyRing.get());
+                });
+            } catch (RejectedExecutionException e) {
+                savePending.set(false);
+                log.warn("Token store is closed, not saving tokens to {}", keyRingStore);
             }
-        } catch (IOException e) {
-            log.error("Failed to save cookie keys {}", e.getMessage());
         }
+    }
 
-        try {
-            Files.move(tmpTokenFile.toPath(), tokenFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-        } catch (IOException e) {
-            log.error("Failed to rename the temporary token file", e);
-        }
-    }
-
-    /**
-     * Load the current set of tokens from the token file. If reading the tokens
-     * fails or the token file does not exist, tokens will be generated on
-     * demand.
-     */
-    private void loadTokens() {
-        if (tokenFile.isFile() && tokenFile.canRead()) {
-            try (DataInputStream keyInputStream = new DataInputStream(new FileInputStream(tokenFile))) {
-                int newCurrentToken = keyInputStream.readInt();
-                long newNextUpdate = keyInputStream.readLong();
-                AtomicReferenceArray<SecretKey> newKeys = new AtomicReferenceArray<>(TOKEN_BUFFER_SIZE);
-                for (int i = 0; i < newKeys.length(); i++) {
-                    int isNull = keyInputStream.readInt();
-                    if (isNull == 1) {
-                        int l = keyInputStream.readInt();
-                        byte[] b = new byte[l];
-                        int offset = 0;
-                        int bytesRead;
-                        do {
-                            bytesRead = keyInputStream.read(b, offset, b.length - offset);
-                            offset += bytesRead;
-                        } while (bytesRead != -1 && offset < b.length);
-                        newKeys.set(i, new SecretKeySpec(b, HMAC_SHA256));
-                    } else {
-                        newKeys.set(i, null);
+    /**
+     * Synchronizes the tokens with a shared store: picks up tokens rotated by
+     * other instances and rotates the tokens when due. Runs in the background,
+     * so that the request path only ever reads the current ring.
+     */
+    private void synchronizeTokens() {
+        synchronized (persistenceLock) {
+            try {
+                byte[] stored = keyRingStore.load();
+                if (stored == null) {
+                    // nothing stored yet or the store was reset, publish the local tokens
+                    storedTokens = null;
+                    if (keyRing.get().activeKey() != null) {
+                        saveTokens(keyRing.get());
                     }
+                } else if (!Arrays.equals(stored, storedTokens)) {
+                    keyRing.set(deserialize(stored, keyRing.get()));
+                    storedTokens = stored;
+                    log.debug("Loaded tokens rotated by another instance from {}", keyRingStore);
                 }
 
-                // assign the tokes and schedule a next update
-                nextUpdate = newNextUpdate;
-                currentToken = newCurrentToken;
-                currentTokens = newKeys;
+                // new tokens are published ahead of their activation, so that all instances
+                // know a token before any cookie signed with it is issued
+                KeyRing current = keyRing.get();
+                long now = System.currentTimeMillis();
+                if (now > current.nextUpdate() - rotationLead) {
+                    KeyRing rotated = rotate(current, Math.max(now + rotationLead, current.nextUpdate()));
+                    // if another instance rotated concurrently, its tokens are picked up with the next synchronization
+                    if (saveTokens(rotated)) {
+                        keyRing.set(rotated);
+                        log.debug("Rotated tokens in {}", keyRingStore);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                log.warn("Failed to synchronize cookie keys with {}: {}", keyRingStore, e.getMessage());
+            }
+        }
+    }
 
+    /**
+     * Stores the given set of tokens. Tokens in a shared store are only replaced
+     * if they were not changed by another instance in the meantime.
+     *
+     * @return <code>false</code> if the tokens could not be stored or the tokens in the
+     *      shared store were changed by another instance
+     */
+    private boolean saveTokens(@NotNull KeyRing ring) {
+        synchronized (persistenceLock) {
+            try {
+                byte[] serialized = serialize(ring);
+                if (!keyRingStore.store(storedTokens, serialized)) {
+                    return false;
+                }
+                storedTokens = serialized;
+                return true;
             } catch (IOException e) {
-                log.error("Failed to load cookie keys {}", e.getMessage());
+                log.error("Failed to save cookie keys {}", e.getMessage());
+                return false;
             }
         }
+    }
+
+    /**
+     * Load the current set of tokens from the store. If reading the tokens
+     * fails or no tokens are stored, tokens will be generated on demand.
+     */
+    private @NotNull KeyRing loadTokens() {
+        try {
+            byte[] stored = keyRingStore.load();
+            if (stored != null) {
+                KeyRing ring = deserialize(stored, null);
+                storedTokens = stored;
+                return ring;
+            }
+        } catch (IOException e) {
+            log.error("Failed to load cookie keys {}", e.getMessage());
+        }
 
         // if there was a failure to read the current tokens, create new ones
-        if (currentTokens == null) {
-            currentTokens = new AtomicReferenceArray<>(TOKEN_BUFFER_SIZE);
-            nextUpdate = System.currentTimeMillis();
-            currentToken = 0;
+        long now = System.currentTimeMillis();
+        return new KeyRing(new HmacKey[TOKEN_BUFFER_SIZE], 0, now, now);
+    }
+
+    private static @NotNull byte[] serialize(@NotNull KeyRing ring) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DataOutputStream keyOutputStream = new DataOutputStream(out)) {
+            keyOutputStream.writeInt(ring.current());
+            keyOutputStream.writeLong(ring.nextUpdate());
+            for (int i = 0; i < TOKEN_BUFFER_SIZE; i++) {
+                HmacKey key = ring.key(i);
+                if (key == null) {
+                    keyOutputStream.writeInt(0);
+                } else {
+                    keyOutputStream.writeInt(1);
+                    byte[] b = key.key.getEncoded();
+                    keyOutputStream.writeInt(b.length);
+                    keyOutputStream.write(b);
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param previous keys of this ring are reused if unchanged, so that their
+     *      {@link HmacKey#generation} is retained
+     */
+    private @NotNull KeyRing deserialize(@NotNull byte[] stored, @Nullable KeyRing previous) throws IOException {
+        try (DataInputStream keyInputStream = new DataInputStream(new ByteArrayInputStream(stored))) {
+            int newCurrentToken = keyInputStream.readInt();
+            long newNextUpdate = keyInputStream.readLong();
+            if (newCurrentToken < 0 || newCurrentToken >= TOKEN_BUFFER_SIZE) {
+                throw new IOException("Invalid current token " + newCurrentToken);
+            }
+            HmacKey[] newKeys = new HmacKey[TOKEN_BUFFER_SIZE];
+            for (int i = 0; i < newKeys.length; i++) {
+                int isNull = keyInputStream.readInt();
+                if (isNull == 1) {
+                    byte[] b = new byte[keyInputStream.readInt()];
+                    keyInputStream.readFully(b);
+                    HmacKey previousKey = previous != null ? previous.key(i) : null;
+                    newKeys[i] = previousKey != null && MessageDigest.isEqual(previousKey.key.getEncoded(), b)
+                            ? previousKey
+                            : new HmacKey(new SecretKeySpec(b, HMAC_SHA256));
+                }
+            }
+
+            // assign the tokes and schedule a next update
+            return new KeyRing(newKeys, newCurrentToken, newNextUpdate, newNextUpdate - rotationInterval());
         }
     }
 
@@ -421,4 +915,85 @@ class TokenStore {
             value >>= 8;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * A secret key together with per-thread <code>Mac</code> instances already initialised
+     * with it, so that computing a HMAC neither looks up the provider nor re-initialises
+     * the <code>Mac</code>.
+     */
+    private static final class HmacKey {
+
+        private static final AtomicLong GENERATIONS = new AtomicLong();
+
+        private final SecretKey key;
+
+        /**
+         * Unique for each key created in this VM, changes when a token number is assigned a new key
+         */
+        private final long generation = GENERATIONS.incrementAndGet();
+
+        private final ThreadLocal<Mac> mac;
+
+        HmacKey(@NotNull SecretKey key) {
+            this.key = key;
+            this.mac = ThreadLocal.withInitial(() -> newMac(key));
+        }
+
+        /**
+         * @return a <code>Mac</code> initialised with this key, confined to the current thread
+         */
+        @NotNull Mac mac() {
+            return mac.get();
+        }
+
+        private static @NotNull Mac newMac(@NotNull SecretKey key) {
+            try {
+                Mac m = Mac.getInstance(HMAC_SHA256);
+                m.init(key);
+                return m;
+            } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+                throw new IllegalStateException("Unable to initialise " + HMAC_SHA256, e);
+            }
+        }
+    }
+
+    /**
+     * An immutable snapshot of the ring of tokens.
+     *
+     * @param keys the tokens, indexed by token number, unused slots are <code>null</code>
+     * @param current the number of the newest token
+     * @param nextUpdate the time when a new token should be created
+     * @param activeFrom the time from which the newest token is used to encode new cookies,
+     *      the previous token is used before
+     */
+    private record KeyRing(@Nullable HmacKey[] keys, int current, long nextUpdate, long activeFrom) {
+
+        @Nullable HmacKey key(int tokenNumber) {
+            return keys[tokenNumber];
+        }
+
+        /**
+         * @return the number of the token used to encode new cookies
+         */
+        int activeToken() {
+            if (System.currentTimeMillis() < activeFrom) {
+                int previous = (current + keys.length - 1) % keys.length;
+                if (keys[previous] != null) {
+                    return previous;
+                }
+            }
+            return current;
+        }
+
+        @Nullable HmacKey activeKey() {
+            return keys[activeToken()];
+        }
+
+        @NotNull KeyRing rotate(@NotNull HmacKey newKey, long newNextUpdate, long newActiveFrom) {
+            HmacKey[] newKeys = keys.clone();
+            int next = (current + 1) % newKeys.length;
+            newKeys[next] = newKey;
+            return new KeyRing(newKeys, next, newNextUpdate, newActiveFrom);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A bounded cache of login cookies which were already validated by the {@link TokenStore}.
+ * <p>
+ * Entries are keyed by the SHA-256 digest of the cookie value, so the cookie values themselves
+ * are not retained. An entry is valid until the earlier of the cookie expiry and the configured
+ * time to live, and only as long as the key which validated the cookie is still part of the
+ * key ring. When the cache is full, the least recently used entry is evicted.
+ */
+class VerifiedCookieCache {
+
+    private static final String SHA_256 = "SHA-256";
+
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance(SHA_256);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Unable to initialise " + SHA_256, e);
+        }
+    });
+
+    private final TokenStore tokenStore;
+    private final long ttl;
+    private final BoundedCache<Digest, LoginCookie> entries;
+
+    VerifiedCookieCache(@NotNull TokenStore tokenStore, int maxSize, long ttl) {
+        this.tokenStore = tokenStore;
+        this.ttl = ttl;
+        this.entries = new BoundedCache<>(maxSize);
+    }
+
+    /**
+     * Returns a previously validated cookie value.
+     *
+     * @param cookieValue the cookie value, as sent by the client
+     * @return the validated cookie or <code>null</code> if the cookie value is not cached or no longer valid
+     */
+    @Nullable LoginCookie get(@NotNull String cookieValue) {
+        Digest digest = Digest.of(cookieValue);
+        LoginCookie loginCookie = entries.get(digest, System.currentTimeMillis());
+        if (loginCookie == null) {
+            return null;
+        }
+        if (tokenStore.keyGeneration(loginCookie.tokenNumber()) != loginCookie.keyGeneration()) {
+            entries.remove(digest, loginCookie);
+            return null;
+        }
+        return loginCookie;
+    }
+
+    /**
+     * Caches a validated cookie value, evicting the least recently used entry if the cache is full.
+     *
+     * @param cookieValue the cookie value, as sent by the client
+     * @param loginCookie the result of validating the cookie value
+     */
+    void put(@NotNull String cookieValue, @NotNull LoginCookie loginCookie) {
+        long expires = Math.min(loginCookie.expires(), System.currentTimeMillis() + ttl);
+        entries.put(Digest.of(cookieValue), loginCookie, expires);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private static final class Digest {
+
+        private final byte[] value;
+        private final int hash;
+
+        private Digest(byte[] value) {
+            this.value = value;
+            this.hash = Arrays.hashCode(value);
+        }
+
+        static @NotNull Digest of(@NotNull String cookieValue) {
+            return new Digest(DIGEST.get().digest(cookieValue.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Digest other && Arrays.equals(value, other.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.spi;
+
+import java.io.IOException;
+
+import org.jetbrains.annotations.NotNull;
+
+import com.nimbusds.oauth2.sdk.http.HTTPRequest;
+import com.nimbusds.oauth2.sdk.http.HTTPResponse;
+
+/**
+ * Sends the HTTP requests to identity providers, e.g. for discovery, token exchange, token refresh and UserInfo.
+ *
+ * <p>Implementations are responsible for timeouts and connection management. They must be thread-safe.</p>
+ */
+public interface HttpTransport {
+
+    /**
+     * Send the request and return the response. Responses with error status codes are returned, not thrown.
+     * @param request the request, as created by the Nimbus SDK
+     * @return the response
+     * @throws IOException if the request could not be sent or the response could not be read, e.g. on timeouts
+     */
+    @NotNull HTTPResponse send(@NotNull HTTPRequest request) throws IOException;
+}
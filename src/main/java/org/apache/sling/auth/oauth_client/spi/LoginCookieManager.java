@@ -54,4 +54,17 @@ public interface LoginCookieManager {
      * @return Cookie
      */
     @Nullable Cookie getLoginCookie(@NotNull HttpServletRequest request);
+
+    /**
+     * Renew the login cookie after a request was successfully authenticated with it, e.g. to extend the session
+     * of an active user. Implementations should only set a new cookie when required, not on every request.
+     * @param request
+     * @param response
+     * @param repository
+     * @param authInfo the AuthenticationInfo returned by {@link #verifyLoginCookie(HttpServletRequest)}
+     */
+    default void renewLoginCookie(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response,
+                                  @NotNull SlingRepository repository, @NotNull AuthenticationInfo authInfo) {
+        // login cookies are not renewed by default
+    }
 }
@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class BoundedCacheTest {
+
+    @Test
+    void expiredValue() {
+        BoundedCache<String, String> cache = new BoundedCache<>(10);
+        cache.put("key", "value", 100);
+
+        assertEquals("value", cache.get("key", 99));
+        assertNull(cache.get("key", 100));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsed() {
+        BoundedCache<String, String> cache = new BoundedCache<>(2);
+        cache.put("a", "a", 100);
+        cache.put("b", "b", 100);
+        cache.get("a", 0);
+
+        cache.put("c", "c", 100);
+        assertEquals(2, cache.size());
+        assertEquals("a", cache.get("a", 0));
+        assertNull(cache.get("b", 0));
+        assertEquals("c", cache.get("c", 0));
+    }
+
+    @Test
+    void putIfAbsent() {
+        BoundedCache<String, String> cache = new BoundedCache<>(10);
+        assertTrue(cache.putIfAbsent("key", "first", 100, 0));
+        assertFalse(cache.putIfAbsent("key", "second", 200, 50));
+        assertEquals("first", cache.get("key", 50));
+
+        // an expired value is replaced
+        assertTrue(cache.putIfAbsent("key", "third", 200, 100));
+        assertEquals("third", cache.get("key", 100));
+    }
+
+    @Test
+    void removeOnlySameValue() {
+        BoundedCache<String, String> cache = new BoundedCache<>(10);
+        cache.put("key", "value", 100);
+        cache.remove("key", new String("value"));
+        assertEquals("value", cache.get("key", 0));
+
+        cache.remove("key", cache.get("key", 0));
+        assertNull(cache.get("key", 0));
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.auth.oauth_client.InMemoryOAuthTokenStore;
+import org.apache.sling.testing.mock.sling.ResourceResolverType;
+import org.apache.sling.testing.mock.sling.junit5.SlingContext;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+class CachingOAuthTokenStoreTest extends TokenStoreTestSupport<CachingOAuthTokenStore> {
+
+    private final InMemoryOAuthTokenStore backingStore = new InMemoryOAuthTokenStore();
+    private final OAuthTokenCache cache = new OAuthTokenCache(100, 60000);
+
+    CachingOAuthTokenStoreTest() {
+        super(MockOidcConnection.DEFAULT_CONNECTION, new SlingContext(ResourceResolverType.JCR_MOCK));
+    }
+
+    @Override
+    @NotNull
+    CachingOAuthTokenStore createTokenStore() {
+        return new CachingOAuthTokenStore(backingStore, cache, null);
+    }
+
+    @Test
+    void tokensServedFromCache() {
+        ResourceResolver resolver = resolverFor("user");
+        CachingOAuthTokenStore tokenStore = createTokenStore();
+        tokenStore.persistTokens(connection, resolver, new OAuthTokens("access", 3600, "refresh"));
+
+        // changes not made through the caching store are not visible until the cached tokens expire
+        backingStore.persistTokens(connection, resolver, new OAuthTokens("other-access", 3600, "other-refresh"));
+
+        assertThat(tokenStore.getAccessToken(connection, resolver).getValue()).isEqualTo("access");
+        assertThat(tokenStore.getRefreshToken(connection, resolver).getValue()).isEqualTo("refresh");
+        assertThat(cache.getHits()).isEqualTo(2);
+        assertThat(cache.getMisses()).isZero();
+        assertThat(cache.getSize()).isEqualTo(2);
+    }
+
+    @Test
+    void lookupsCachedAfterMiss() {
+        ResourceResolver resolver = resolverFor("user");
+        backingStore.persistTokens(connection, resolver, new OAuthTokens("access", 3600, null));
+        CachingOAuthTokenStore tokenStore = createTokenStore();
+
+        assertThat(tokenStore.getAccessToken(connection, resolver).getValue()).isEqualTo("access");
+        assertThat(tokenStore.getAccessToken(connection, resolver).getValue()).isEqualTo("access");
+        assertThat(tokenStore.getRefreshToken(connection, resolver).getState()).isEqualTo(TokenState.MISSING);
+        assertThat(tokenStore.getRefreshToken(connection, resolver).getState()).isEqualTo(TokenState.MISSING);
+
+        // missing tokens are not cached
+        assertThat(cache.getHits()).isEqualTo(1);
+        assertThat(cache.getMisses()).isEqualTo(3);
+    }
+
+    @Test
+    void cachedTokenExpiresWithAccessToken() throws InterruptedException {
+        ResourceResolver resolver = resolverFor("user");
+        CachingOAuthTokenStore tokenStore = createTokenStore();
+        tokenStore.persistTokens(connection, resolver, new OAuthTokens("access", 1, "refresh"));
+        assertThat(tokenStore.getAccessToken(connection, resolver).getState()).isEqualTo(TokenState.VALID);
+
+        Thread.sleep(1100);
+
+        assertThat(tokenStore.getAccessToken(connection, resolver).getState()).isEqualTo(TokenState.EXPIRED);
+        assertThat(tokenStore.getRefreshToken(connection, resolver).getValue()).isEqualTo("refresh");
+    }
+
+    @Test
+    void clearAccessTokenInvalidatesCache() {
+        ResourceResolver resolver = resolverFor("user");
+        CachingOAuthTokenStore tokenStore = createTokenStore();
+        tokenStore.persistTokens(connection, resolver, new OAuthTokens("access", 3600, "refresh"));
+
+        tokenStore.clearAccessToken(connection, resolver);
+
+        assertThat(tokenStore.getAccessToken(connection, resolver).getState()).isEqualTo(TokenState.MISSING);
+        assertThat(tokenStore.getRefreshToken(connection, resolver).getValue()).isEqualTo("refresh");
+    }
+
+    @Test
+    void tokensCachedPerUser() {
+        CachingOAuthTokenStore tokenStore = createTokenStore();
+        tokenStore.persistTokens(connection, resolverFor("user1"), new OAuthTokens("access1", 3600, null));
+        tokenStore.persistTokens(connection, resolverFor("user2"), new OAuthTokens("access2", 3600, null));
+
+        assertThat(tokenStore.getAccessToken(connection, resolverFor("user1")).getValue()).isEqualTo("access1");
+        assertThat(tokenStore.getAccessToken(connection, resolverFor("user2")).getValue()).isEqualTo("access2");
+    }
+
+    @Test
+    void fullCacheEvictsLeastRecentlyUsed() {
+        OAuthTokenCache smallCache = new OAuthTokenCache(2, 60000);
+        OAuthToken token = new OAuthToken(TokenState.VALID, "access");
+        smallCache.put("user1", "connection", OAuthTokenCache.TokenType.ACCESS, token);
+        smallCache.put("user2", "connection", OAuthTokenCache.TokenType.ACCESS, token);
+        assertThat(smallCache.get("user1", "connection", OAuthTokenCache.TokenType.ACCESS)).isSameAs(token);
+
+        // the cache is full of live entries, the least recently used one makes room
+        smallCache.put("user3", "connection", OAuthTokenCache.TokenType.ACCESS, token);
+        assertThat(smallCache.getSize()).isEqualTo(2);
+        assertThat(smallCache.get("user1", "connection", OAuthTokenCache.TokenType.ACCESS)).isSameAs(token);
+        assertThat(smallCache.get("user2", "connection", OAuthTokenCache.TokenType.ACCESS)).isNull();
+        assertThat(smallCache.get("user3", "connection", OAuthTokenCache.TokenType.ACCESS)).isSameAs(token);
+    }
+
+    private static ResourceResolver resolverFor(String userId) {
+        ResourceResolver resolver = mock(ResourceResolver.class);
+        when(resolver.getUserID()).thenReturn(userId);
+        return resolver;
+    }
+}
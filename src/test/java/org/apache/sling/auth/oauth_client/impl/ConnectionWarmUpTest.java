@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.sling.auth.oauth_client.spi.HttpTransport;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.osgi.util.converter.Converters;
+
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import net.minidev.json.JSONObject;
+
+class ConnectionWarmUpTest {
+
+    private HttpServer idpServer;
+    private String baseUrl;
+    private final AtomicInteger discoveryRequests = new AtomicInteger();
+    private final AtomicInteger jwkSetRequests = new AtomicInteger();
+    private final HttpTransport httpTransport = new JdkHttpTransport(5000, 10000, 10);
+    private final OidcProviderMetadataRegistry metadataRegistry = new OidcProviderMetadataRegistry(httpTransport);
+    private ConnectionWarmUp warmUp;
+
+    @BeforeEach
+    void startServer() throws Exception {
+        JWKSet jwkSet = new JWKSet(new RSAKeyGenerator(2048).keyID("123").generate().toPublicJWK());
+        idpServer = HttpServer.create(new InetSocketAddress(0), 0);
+        baseUrl = "http://localhost:" + idpServer.getAddress().getPort();
+        idpServer.createContext("/.well-known/openid-configuration", exchange -> {
+            discoveryRequests.incrementAndGet();
+            respond(exchange, new JSONObject(Map.of(
+                    "issuer", baseUrl,
+                    "authorization_endpoint", baseUrl + "/authorize",
+                    "token_endpoint", baseUrl + "/token",
+                    "jwks_uri", baseUrl + "/jwks.json",
+                    "response_types_supported", List.of("code"),
+                    "subject_types_supported", List.of("public"),
+                    "id_token_signing_alg_values_supported", List.of("RS256"))).toString());
+        });
+        idpServer.createContext("/jwks.json", exchange -> {
+            jwkSetRequests.incrementAndGet();
+            respond(exchange, jwkSet.toString());
+        });
+        idpServer.start();
+
+        warmUp = new ConnectionWarmUp(httpTransport, Converters.standardConverter().convert(Map.of("threads", 2))
+                .to(ConnectionWarmUp.Config.class));
+    }
+
+    @AfterEach
+    void stopServer() {
+        warmUp.deactivate();
+        idpServer.stop(0);
+    }
+
+    @Test
+    void connectionsWarmedUpWhenBound() throws Exception {
+        OidcConnectionImpl connection = createConnection("first", baseUrl);
+        warmUp.bindConnection(connection);
+
+        await().atMost(Duration.ofSeconds(10)).until(() -> warmUp.readiness("first") == ConnectionWarmUp.Readiness.READY);
+        assertThat(warmUp.getReadyConnections()).containsExactly("first");
+        assertThat(discoveryRequests.get()).isEqualTo(1);
+        assertThat(jwkSetRequests.get()).isEqualTo(1);
+
+        // the login uses the cached metadata and JWK set
+        ResolvedOidcConnection conn = ResolvedOidcConnection.resolve(connection);
+        connection.idTokenValidator(conn, httpTransport);
+        connection.warmUp(httpTransport);
+        assertThat(discoveryRequests.get()).isEqualTo(1);
+        assertThat(jwkSetRequests.get()).isEqualTo(1);
+
+        warmUp.unbindConnection(connection);
+        assertThat(warmUp.readiness("first")).isNull();
+    }
+
+    @Test
+    void failedWarmUpReported() {
+        warmUp.bindConnection(createConnection("unreachable", "http://localhost:1"));
+
+        await().atMost(Duration.ofSeconds(10)).until(() -> warmUp.readiness("unreachable") == ConnectionWarmUp.Readiness.FAILED);
+        assertThat(warmUp.getFailedConnections()).containsExactly("unreachable");
+        assertThat(warmUp.getPendingConnections()).isEmpty();
+    }
+
+    @Test
+    void reconfiguredConnectionKeepsReadiness() {
+        OidcConnectionImpl previous = createConnection("first", baseUrl);
+        warmUp.bindConnection(previous);
+        await().atMost(Duration.ofSeconds(10)).until(() -> warmUp.readiness("first") == ConnectionWarmUp.Readiness.READY);
+
+        // the configuration change registers the new connection before the previous one is unregistered
+        warmUp.bindConnection(createConnection("first", baseUrl));
+        warmUp.unbindConnection(previous);
+
+        await().atMost(Duration.ofSeconds(10)).until(() -> warmUp.readiness("first") == ConnectionWarmUp.Readiness.READY);
+        assertThat(discoveryRequests.get()).isEqualTo(1);
+        assertThat(jwkSetRequests.get()).isEqualTo(2);
+    }
+
+    private OidcConnectionImpl createConnection(String name, String baseUrl) {
+        OidcConnectionImpl.Config config = Converters.standardConverter().convert(Map.of("name", name, "baseUrl", baseUrl,
+                "clientId", "client-id", "clientSecret", "client-secret", "scopes", new String[] {"openid"},
+                "additionalAuthorizationParameters", new String[0])).to(OidcConnectionImpl.Config.class);
+        return new OidcConnectionImpl(config, metadataRegistry);
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        byte[] response = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, response.length);
+        exchange.getResponseBody().write(response);
+        exchange.close();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+class EncryptingKeyRingStoreTest {
+
+    private final byte[] keys = "keys".getBytes(StandardCharsets.UTF_8);
+    private final byte[] otherKeys = "other-keys".getBytes(StandardCharsets.UTF_8);
+
+    private final InMemoryKeyRingStore delegate = new InMemoryKeyRingStore();
+
+    @Test
+    void storesEncryptedKeys() throws Exception {
+        KeyRingStore store = new EncryptingKeyRingStore(delegate, "secret");
+
+        assertThat(store.store(null, keys)).isTrue();
+        assertThat(delegate.load()).isNotEqualTo(keys);
+        assertThat(new String(delegate.load(), StandardCharsets.ISO_8859_1)).doesNotContain("keys");
+        assertThat(new EncryptingKeyRingStore(delegate, "secret").load()).isEqualTo(keys);
+    }
+
+    @Test
+    void compareAndSet() throws Exception {
+        KeyRingStore first = new EncryptingKeyRingStore(delegate, "secret");
+        KeyRingStore second = new EncryptingKeyRingStore(delegate, "secret");
+
+        assertThat(first.load()).isNull();
+        assertThat(first.store(null, keys)).isTrue();
+        assertThat(second.store(null, otherKeys)).as("stored keys were changed").isFalse();
+        assertThat(second.load()).isEqualTo(keys);
+        assertThat(second.store(keys, otherKeys)).isTrue();
+        assertThat(first.store(keys, otherKeys)).as("stored keys were changed").isFalse();
+        assertThat(first.load()).isEqualTo(otherKeys);
+    }
+
+    @Test
+    void rejectsUnencryptedKeys() throws Exception {
+        delegate.store(null, keys);
+        KeyRingStore store = new EncryptingKeyRingStore(delegate, "secret");
+
+        assertThatThrownBy(store::load).isInstanceOf(IOException.class).hasMessageStartingWith("Rejecting unencrypted keys");
+    }
+
+    @Test
+    void encryptsUnencryptedKeysWithNextUpdate() throws Exception {
+        delegate.store(null, keys);
+        KeyRingStore store = new EncryptingKeyRingStore(delegate, "secret", true);
+
+        assertThat(store.load()).isEqualTo(keys);
+        assertThat(store.store(keys, otherKeys)).isTrue();
+        assertThat(delegate.load()[0]).isEqualTo((byte) 1);
+        assertThat(store.load()).isEqualTo(otherKeys);
+    }
+
+    @Test
+    void differentSecret() throws Exception {
+        new EncryptingKeyRingStore(delegate, "secret").store(null, keys);
+
+        KeyRingStore store = new EncryptingKeyRingStore(delegate, "other-secret");
+        assertThatThrownBy(store::load).isInstanceOf(IOException.class);
+    }
+
+    private static class InMemoryKeyRingStore implements KeyRingStore {
+
+        private byte[] keys;
+
+        @Override
+        public synchronized byte[] load() {
+            return keys;
+        }
+
+        @Override
+        public synchronized boolean store(byte[] expected, byte[] keys) {
+            if (!Arrays.equals(expected, this.keys)) {
+                return false;
+            }
+            this.keys = keys;
+            return true;
+        }
+
+        @Override
+        public boolean isShared() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.sling.auth.oauth_client.spi.HttpTransport;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import com.nimbusds.openid.connect.sdk.validators.IDTokenValidator;
+import com.sun.net.httpserver.HttpServer;
+
+class IdTokenValidatorCacheTest {
+
+    private static final String ISSUER = "myIssuer";
+    private static final String CLIENT_ID = "client-id";
+
+    private HttpServer idpServer;
+    private URI jwkSetURL;
+    private final AtomicReference<JWKSet> jwkSet = new AtomicReference<>();
+    private final AtomicInteger jwkSetRequests = new AtomicInteger();
+    private final HttpTransport httpTransport = new JdkHttpTransport(5000, 10000, 10);
+    private IdTokenValidatorCache cache;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        idpServer = HttpServer.create(new InetSocketAddress(0), 0);
+        idpServer.createContext("/jwks.json", exchange -> {
+            jwkSetRequests.incrementAndGet();
+            byte[] response = jwkSet.get().toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        });
+        idpServer.start();
+        jwkSetURL = URI.create("http://localhost:" + idpServer.getAddress().getPort() + "/jwks.json");
+    }
+
+    @AfterEach
+    void stopServer() {
+        if (cache != null) {
+            cache.close();
+        }
+        idpServer.stop(0);
+    }
+
+    @Test
+    void jwkSetCachedBetweenValidations() throws Exception {
+        RSAKey rsaJWK = new RSAKeyGenerator(2048).keyID("123").generate();
+        jwkSet.set(new JWKSet(rsaJWK.toPublicJWK()));
+        cache = new IdTokenValidatorCache(60000, 0, 30000);
+
+        IDTokenValidator validator = cache.get(ISSUER, CLIENT_ID, jwkSetURL, httpTransport);
+        assertSame(validator, cache.get(ISSUER, CLIENT_ID, jwkSetURL, httpTransport));
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("1234567890", cache.get(ISSUER, CLIENT_ID, jwkSetURL, httpTransport)
+                    .validate(createIdToken(rsaJWK), null).getSubject().getValue());
+        }
+        assertEquals(1, jwkSetRequests.get());
+    }
+
+    @Test
+    void validatorRebuiltOnConfigurationChange() throws Exception {
+        cache = new IdTokenValidatorCache(60000, 0, 30000);
+
+        IDTokenValidator validator = cache.get(ISSUER, CLIENT_ID, jwkSetURL, httpTransport);
+        assertNotSame(validator, cache.get(ISSUER, "other-client-id", jwkSetURL, httpTransport));
+        assertNotSame(validator, cache.get(ISSUER, CLIENT_ID, jwkSetURL, httpTransport));
+    }
+
+    @Test
+    void jwkSetRefreshedForUnknownKey() throws Exception {
+        RSAKey oldKey = new RSAKeyGenerator(2048).keyID("old").generate();
+        RSAKey newKey = new RSAKeyGenerator(2048).keyID("new").generate();
+        jwkSet.set(new JWKSet(oldKey.toPublicJWK()));
+        cache = new IdTokenValidatorCache(60000, 0, 1);
+
+        cache.get(ISSUER, CLIENT_ID, jwkSetURL, httpTransport).validate(createIdToken(oldKey), null);
+        assertEquals(1, jwkSetRequests.get());
+
+        // the provider rotates its signing key before the cached JWK set expires
+        jwkSet.set(new JWKSet(newKey.toPublicJWK()));
+        Thread.sleep(5);
+        assertEquals("1234567890", cache.get(ISSUER, CLIENT_ID, jwkSetURL, httpTransport)
+                .validate(createIdToken(newKey), null).getSubject().getValue());
+        assertEquals(2, jwkSetRequests.get());
+    }
+
+    private static SignedJWT createIdToken(RSAKey rsaJWK) throws JOSEException {
+        JWTClaimsSet claimsSet = new JWTClaimsSet.Builder()
+                .issuer(ISSUER)
+                .subject("1234567890")
+                .audience(CLIENT_ID)
+                .expirationTime(new Date(new Date().getTime() + 60 * 1000))
+                .issueTime(new Date())
+                .build();
+        SignedJWT signedJWT = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID(rsaJWK.getKeyID()).build(), claimsSet);
+        signedJWT.sign(new RSASSASigner(rsaJWK));
+        return signedJWT;
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.nimbusds.oauth2.sdk.http.HTTPRequest;
+import com.nimbusds.oauth2.sdk.http.HTTPResponse;
+import com.sun.net.httpserver.HttpServer;
+
+class JdkHttpTransportTest {
+
+    private HttpServer server;
+    private String baseUrl;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void postFormRequest() throws Exception {
+        server.createContext("/token", exchange -> {
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            byte[] response = String.format("{\"method\":\"%s\",\"body\":\"%s\",\"authorization\":\"%s\"}",
+                    exchange.getRequestMethod(), body, exchange.getRequestHeaders().getFirst("Authorization"))
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.getResponseHeaders().add("X-Test", "value");
+            exchange.sendResponseHeaders(400, response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        });
+
+        HTTPRequest request = new HTTPRequest(HTTPRequest.Method.POST, URI.create(baseUrl + "/token"));
+        request.setContentType("application/x-www-form-urlencoded");
+        request.setAuthorization("Basic Zm9vOmJhcg==");
+        request.setBody("grant_type=refresh_token");
+
+        HTTPResponse response = new JdkHttpTransport(5000, 10000, 10).send(request);
+
+        assertThat(response.getStatusCode()).isEqualTo(400);
+        assertThat(response.getHeaderValue("X-Test")).isEqualTo("value");
+        assertThat(response.getContentAsJSONObject())
+                .containsEntry("method", "POST")
+                .containsEntry("body", "grant_type=refresh_token")
+                .containsEntry("authorization", "Basic Zm9vOmJhcg==");
+    }
+
+    @Test
+    void readTimeout() {
+        server.createContext("/slow", exchange -> {
+            try {
+                Thread.sleep(2000);
+                exchange.sendResponseHeaders(204, -1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        });
+
+        HTTPRequest request = new HTTPRequest(HTTPRequest.Method.GET, URI.create(baseUrl + "/slow"));
+        assertThatThrownBy(() -> new JdkHttpTransport(5000, 100, 10).send(request))
+                .isInstanceOf(HttpTimeoutException.class);
+    }
+
+    @Test
+    void requestReadTimeout() {
+        server.createContext("/slow", exchange -> {
+            try {
+                Thread.sleep(2000);
+                exchange.sendResponseHeaders(204, -1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        });
+
+        HTTPRequest request = new HTTPRequest(HTTPRequest.Method.GET, URI.create(baseUrl + "/slow"));
+        request.setReadTimeout(100);
+        assertThatThrownBy(() -> new JdkHttpTransport(5000, 10000, 10).send(request))
+                .isInstanceOf(HttpTimeoutException.class);
+    }
+
+    @Test
+    void responseTooLarge() throws Exception {
+        byte[] body = new byte[2048];
+        server.createContext("/large", exchange -> {
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+
+        HTTPRequest request = new HTTPRequest(HTTPRequest.Method.GET, URI.create(baseUrl + "/large"));
+        assertThat(new JdkHttpTransport(5000, 10000, 10, 0, 0, 2048, null).send(request).getContent()).hasSize(2048);
+        assertThatThrownBy(() -> new JdkHttpTransport(5000, 10000, 10, 0, 0, 1024, null).send(request))
+                .isInstanceOf(IOException.class)
+                .hasStackTraceContaining("Response exceeds the maximum size of 1024 bytes");
+    }
+
+    @Test
+    void deactivated() {
+        JdkHttpTransport transport = new JdkHttpTransport(5000, 10000, 10);
+        transport.deactivate();
+
+        HTTPRequest request = new HTTPRequest(HTTPRequest.Method.GET, URI.create(baseUrl + "/token"));
+        assertThatThrownBy(() -> transport.send(request))
+                .isInstanceOf(IOException.class)
+                .hasMessage("HTTP transport is deactivated");
+    }
+
+    @Test
+    void unknownHost() {
+        HTTPRequest request = new HTTPRequest(HTTPRequest.Method.GET, URI.create("http://jfdljfioewms/token"));
+        assertThatThrownBy(() -> new JdkHttpTransport(5000, 10000, 10).send(request))
+                .isInstanceOf(UnknownHostException.class)
+                .hasMessage("jfdljfioewms");
+    }
+
+    @Test
+    void concurrentRequestsPerHostBounded() throws Exception {
+        CountDownLatch requestReceived = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        server.createContext("/blocking", exchange -> {
+            try {
+                requestReceived.countDown();
+                release.await(10, TimeUnit.SECONDS);
+                exchange.sendResponseHeaders(204, -1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        });
+
+        JdkHttpTransport transport = new JdkHttpTransport(200, 10000, 1);
+        HTTPRequest request = new HTTPRequest(HTTPRequest.Method.GET, URI.create(baseUrl + "/blocking"));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<HTTPResponse> first = executor.submit(() -> transport.send(request));
+            assertThat(requestReceived.await(10, TimeUnit.SECONDS)).isTrue();
+
+            assertThatThrownBy(() -> transport.send(request))
+                    .isInstanceOf(IdentityProviderUnavailableException.class)
+                    .hasMessageStartingWith("Too many concurrent requests to ");
+            assertThat(transport.guard(baseUrl).getRejectedRequests()).isEqualTo(1);
+
+            release.countDown();
+            assertThat(first.get(10, TimeUnit.SECONDS).getStatusCode()).isEqualTo(204);
+            assertThat(transport.send(request).getStatusCode()).isEqualTo(204);
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void circuitBreakerOpensAfterConsecutiveFailures() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        AtomicInteger status = new AtomicInteger(503);
+        server.createContext("/token", exchange -> {
+            requests.incrementAndGet();
+            exchange.sendResponseHeaders(status.get(), -1);
+            exchange.close();
+        });
+
+        JdkHttpTransport transport = new JdkHttpTransport(5000, 10000, 10, 2, 200, JdkHttpTransport.DEFAULT_MAX_RESPONSE_SIZE, null);
+        HTTPRequest request = new HTTPRequest(HTTPRequest.Method.POST, URI.create(baseUrl + "/token"));
+        IdentityProviderGuard guard = transport.guard(baseUrl);
+
+        assertThat(transport.send(request).getStatusCode()).isEqualTo(503);
+        assertThat(guard.getState()).isEqualTo("CLOSED");
+        assertThat(transport.send(request).getStatusCode()).isEqualTo(503);
+        assertThat(guard.getState()).isEqualTo("OPEN");
+
+        assertThatThrownBy(() -> transport.send(request))
+                .isInstanceOf(IdentityProviderUnavailableException.class)
+                .hasMessageContaining("circuit breaker is open");
+        assertThat(requests.get()).isEqualTo(2);
+        assertThat(guard.getShortCircuitedRequests()).isEqualTo(1);
+        assertThat(guard.getFailedRequests()).isEqualTo(2);
+
+        // a failed trial request keeps the circuit open
+        Thread.sleep(250);
+        assertThat(transport.send(request).getStatusCode()).isEqualTo(503);
+        assertThat(guard.getState()).isEqualTo("OPEN");
+        assertThatThrownBy(() -> transport.send(request))
+                .isInstanceOf(IdentityProviderUnavailableException.class);
+
+        // a successful trial request closes it
+        status.set(200);
+        Thread.sleep(250);
+        assertThat(transport.send(request).getStatusCode()).isEqualTo(200);
+        assertThat(guard.getState()).isEqualTo("CLOSED");
+        assertThat(guard.getConsecutiveFailures()).isZero();
+        assertThat(requests.get()).isEqualTo(4);
+    }
+
+    @Test
+    void clientErrorsDoNotOpenCircuitBreaker() throws Exception {
+        server.createContext("/token", exchange -> {
+            exchange.sendResponseHeaders(400, -1);
+            exchange.close();
+        });
+
+        JdkHttpTransport transport = new JdkHttpTransport(5000, 10000, 10, 1, 60000, JdkHttpTransport.DEFAULT_MAX_RESPONSE_SIZE, null);
+        HTTPRequest request = new HTTPRequest(HTTPRequest.Method.POST, URI.create(baseUrl + "/token"));
+        for (int i = 0; i < 3; i++) {
+            assertThat(transport.send(request).getStatusCode()).isEqualTo(400);
+        }
+        assertThat(transport.guard(baseUrl).getState()).isEqualTo("CLOSED");
+    }
+}
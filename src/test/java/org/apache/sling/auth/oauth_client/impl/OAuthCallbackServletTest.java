@@ -72,7 +72,7 @@ class OAuthCallbackServletTest {
        );
         
         tokenStore = new InMemoryOAuthTokenStore();
-        servlet = new OAuthCallbackServlet(connections, tokenStore, new StubOAuthStateManager());
+        servlet = new OAuthCallbackServlet(connections, tokenStore, new StubOAuthStateManager(), new JdkHttpTransport(5000, 10000, 10));
     }
     
     @AfterEach
@@ -26,6 +26,7 @@ import com.nimbusds.jose.jwk.RSAKey;
 import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
 import com.nimbusds.jwt.JWTClaimsSet;
 import com.nimbusds.jwt.SignedJWT;
+import com.nimbusds.openid.connect.sdk.op.OIDCProviderMetadata;
 import com.sun.net.httpserver.HttpServer;
 import net.minidev.json.JSONObject;
 import org.apache.sling.auth.core.spi.AuthenticationInfo;
@@ -57,6 +58,9 @@ import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 class OidcAuthenticationHandlerTest {
@@ -104,6 +108,7 @@ class OidcAuthenticationHandlerTest {
 
     @AfterEach
     void shutdownServers() {
+        oidcAuthenticationHandler.deactivate();
         tokenEndpointServer.stop(0);
         idpServer.stop(0);
     }
@@ -114,6 +119,29 @@ class OidcAuthenticationHandlerTest {
         assertNull(oidcAuthenticationHandler.extractCredentials(request, response));
     }
 
+    @Test
+    void extractCredentialsWithoutAuthorizationResponseParameters() {
+        when(request.getQueryString()).thenReturn("page=2&postcode=12345&mystate=open");
+
+        assertNull(oidcAuthenticationHandler.extractCredentials(request, response));
+        verify(request, never()).getRequestURL();
+    }
+
+    @Test
+    void extractCredentialsOutsideCallbackPath() {
+        when(config.callbackUri()).thenReturn("http://localhost:8080/system/sling/oauth/callback");
+        createOidcAuthenticationHandler();
+        when(request.getQueryString()).thenReturn("code=authorizationCode&state=part1%7Cpart2");
+        when(request.getCookies()).thenReturn(null);
+
+        when(request.getRequestURI()).thenReturn("/content/page.html");
+        assertNull(oidcAuthenticationHandler.extractCredentials(request, response));
+
+        when(request.getRequestURI()).thenReturn("/system/sling/oauth/callback");
+        IllegalStateException exception = assertThrows(IllegalStateException.class, () -> oidcAuthenticationHandler.extractCredentials(request, response));
+        assertEquals("Failed state check: No cookies found", exception.getMessage());
+    }
+
     @Test
     void extractCredentialsWithoutAuthorizationCode() {
         request = mock(HttpServletRequest.class);
@@ -402,6 +430,76 @@ class OidcAuthenticationHandlerTest {
         assertEquals("1234567890", authInfo.get("user.name"));
     }
 
+    @Test
+    void extractCredentials_WithMatchingState_WithValidConnection_WithValidIdToken_WithConcurrentUserInfo() throws JOSEException {
+        RSAKey rsaJWK = new RSAKeyGenerator(2048)
+                .keyID("123")
+                .generate();
+        when(config.userInfoEnabled()).thenReturn(true);
+        when(config.userInfoConcurrency()).thenReturn(2);
+        userInfoProcessor = new UserInfoProcessorImpl();
+        AuthenticationInfo authInfo = extractCredentials_WithMatchingState_WithValidConnection_WithIdToken(createIdToken(rsaJWK, "client-id", ISSUER), rsaJWK, "http://localhost:4567");
+        assertEquals("1234567890", authInfo.get("user.name"));
+        assertEquals("testUser", ((OidcAuthCredentials)authInfo.get("user.jcr.credentials")).getAttribute("profile/name"));
+    }
+
+    @Test
+    void extractCredentials_WithMatchingState_WithValidConnection_WithWrongIssuer_WithConcurrentUserInfo() throws JOSEException {
+        RSAKey rsaJWK = new RSAKeyGenerator(2048)
+                .keyID("123")
+                .generate();
+        when(config.userInfoEnabled()).thenReturn(true);
+        when(config.userInfoConcurrency()).thenReturn(2);
+        userInfoProcessor = mock(UserInfoProcessor.class);
+
+        // the failed validation is reported, the UserInfo response is not processed
+        RuntimeException exception = assertThrows(RuntimeException.class, () -> extractCredentials_WithMatchingState_WithValidConnection_WithIdToken(createIdToken(rsaJWK, "client-id", "wrong-issuer"), rsaJWK, "http://localhost:4567"));
+        assertEquals("Unexpected JWT issuer: wrong-issuer", exception.getMessage());
+        verifyNoInteractions(userInfoProcessor);
+    }
+
+    @Test
+    void extractCredentials_WithMatchingState_WithValidConnection_WithValidIdToken_WithIdTokenClaims() throws JOSEException {
+        RSAKey rsaJWK = new RSAKeyGenerator(2048)
+                .keyID("123")
+                .generate();
+        when(config.userInfoEnabled()).thenReturn(true);
+        when(config.claimsSource()).thenReturn(OidcAuthenticationHandler.ClaimsSource.ID_TOKEN);
+        userInfoProcessor = new UserInfoProcessorImpl();
+        AuthenticationInfo authInfo = extractCredentials_WithMatchingState_WithValidConnection_WithIdToken(createIdToken(rsaJWK, "client-id", ISSUER), rsaJWK, "http://localhost:4567");
+        OidcAuthCredentials credentials = (OidcAuthCredentials) authInfo.get("user.jcr.credentials");
+        assertEquals("1234567890", authInfo.get("user.name"));
+        assertEquals("John Doe", credentials.getAttribute("profile/name"));
+        assertNull(credentials.getAttribute("profile/iss"));
+    }
+
+    @Test
+    void extractCredentials_WithMatchingState_WithValidConnection_WithValidIdToken_WithUserInfoFallback() throws JOSEException {
+        RSAKey rsaJWK = new RSAKeyGenerator(2048)
+                .keyID("123")
+                .generate();
+        when(config.userInfoEnabled()).thenReturn(true);
+        when(config.claimsSource()).thenReturn(OidcAuthenticationHandler.ClaimsSource.ID_TOKEN_WITH_USERINFO_FALLBACK);
+        when(config.requiredClaims()).thenReturn(new String[] {"name", "groups"});
+        userInfoProcessor = new UserInfoProcessorImpl();
+        // the ID token has no groups claim, so UserInfo is requested
+        AuthenticationInfo authInfo = extractCredentials_WithMatchingState_WithValidConnection_WithIdToken(createIdToken(rsaJWK, "client-id", ISSUER), rsaJWK, "http://localhost:4567");
+        assertEquals("testUser", ((OidcAuthCredentials)authInfo.get("user.jcr.credentials")).getAttribute("profile/name"));
+    }
+
+    @Test
+    void extractCredentials_WithMatchingState_WithValidConnection_WithValidIdToken_WithRequiredClaimsInIdToken() throws JOSEException {
+        RSAKey rsaJWK = new RSAKeyGenerator(2048)
+                .keyID("123")
+                .generate();
+        when(config.userInfoEnabled()).thenReturn(true);
+        when(config.claimsSource()).thenReturn(OidcAuthenticationHandler.ClaimsSource.ID_TOKEN_WITH_USERINFO_FALLBACK);
+        when(config.requiredClaims()).thenReturn(new String[] {"name", "email"});
+        userInfoProcessor = new UserInfoProcessorImpl();
+        AuthenticationInfo authInfo = extractCredentials_WithMatchingState_WithValidConnection_WithIdToken(createIdToken(rsaJWK, "client-id", ISSUER), rsaJWK, "http://localhost:4567");
+        assertEquals("John Doe", ((OidcAuthCredentials)authInfo.get("user.jcr.credentials")).getAttribute("profile/name"));
+    }
+
     // Test with a valid id token but with an invalid user info response that return error
     @Test
     void extractCredentials_WithMatchingState_WithValidConnection_WithValidIdToken_WithInvalidUserInfo() throws JOSEException {
@@ -685,7 +783,8 @@ class OidcAuthenticationHandlerTest {
                 oauthStateManager,
                 config,
                 loginCookieManager,
-                userInfoProcessor
+                userInfoProcessor,
+                new JdkHttpTransport(5000, 10000, 10)
         );
     }
 
@@ -789,7 +888,9 @@ class OidcAuthenticationHandlerTest {
     void authenticationSucceededLoginManagerWithLoginCookie() {
         when(loginCookieManager.getLoginCookie(request)).thenReturn(new Cookie("test", "test"));
         createOidcAuthenticationHandler();
-        assertFalse(oidcAuthenticationHandler.authenticationSucceeded(request, response, new AuthenticationInfo("oidc", "testUser")));
+        AuthenticationInfo authInfo = new AuthenticationInfo("oidc", "testUser");
+        assertFalse(oidcAuthenticationHandler.authenticationSucceeded(request, response, authInfo));
+        verify(loginCookieManager).renewLoginCookie(request, response, repository, authInfo);
     }
 
     @Test
@@ -838,6 +939,7 @@ class OidcAuthenticationHandlerTest {
     @Test
     void resolveOidcConnectionTest() {
         OidcConnectionImpl oidcClientConnection = mock(OidcConnectionImpl.class);
+        when(oidcClientConnection.resolved()).thenCallRealMethod();
         when(oidcClientConnection.scopes()).thenReturn(new String[0]);
         when(oidcClientConnection.additionalAuthorizationParameters()).thenReturn(new String[0]);
         assertInstanceOf(ResolvedOidcConnection.class, ResolvedOidcConnection.resolve(oidcClientConnection));
@@ -848,4 +950,25 @@ class OidcAuthenticationHandlerTest {
         assertEquals("Unable to resolve ClientConnection (name=test) of type org.apache.sling.auth.oauth_client.impl.OAuthConnectionImpl", exception.getMessage());
     }
 
-}
\ No newline at end of file
+    @Test
+    void resolvedOidcConnectionIsReused() {
+        OidcProviderMetadataRegistry oidcProviderMetadataRegistry = mock(OidcProviderMetadataRegistry.class);
+        String mockIdPUrl = "http://localhost:8080";
+        when(oidcProviderMetadataRegistry.getJWKSetURI(mockIdPUrl)).thenReturn(URI.create(mockIdPUrl + "/jwks.json"));
+        when(oidcProviderMetadataRegistry.getIssuer(mockIdPUrl)).thenReturn(ISSUER);
+        when(oidcProviderMetadataRegistry.getProviderMetadata(mockIdPUrl)).thenReturn(mock(OIDCProviderMetadata.class));
+        MockOidcConnection connection = new MockOidcConnection(new String[]{"openid"}, MOCK_OIDC_PARAM, "client-id",
+                "client-secret", mockIdPUrl, new String[0], oidcProviderMetadataRegistry);
+
+        ResolvedOidcConnection resolved = ResolvedOidcConnection.resolve(connection);
+        assertSame(resolved, ResolvedOidcConnection.resolve(connection));
+        assertEquals(URI.create(mockIdPUrl + "/token"), assertDoesNotThrow(resolved::tokenEndpointURI));
+        assertEquals("client-id", resolved.clientCredentials().getClientID().getValue());
+        assertEquals(resolved.clientCredentials(), ResolvedOAuthConnection.resolve(connection).clientCredentials());
+
+        // refreshed provider metadata
+        when(oidcProviderMetadataRegistry.getProviderMetadata(mockIdPUrl)).thenReturn(mock(OIDCProviderMetadata.class));
+        assertNotSame(resolved, ResolvedOidcConnection.resolve(connection));
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.osgi.util.converter.Converters;
+
+class OidcConnectionImplTest {
+
+    private final OidcProviderMetadataRegistry metadataRegistry = mock(OidcProviderMetadataRegistry.class);
+
+    @Test
+    void staticMetadataBypassesDiscovery() {
+        OidcConnectionImpl connection = createConnection(Map.of(
+                "issuer", "https://idp.example.com",
+                "authorizationEndpoint", "https://idp.example.com/authorize",
+                "tokenEndpoint", "https://idp.example.com/token",
+                "userInfoEndpoint", "https://idp.example.com/userinfo",
+                "jwkSetURL", "https://idp.example.com/jwks.json"));
+
+        ResolvedOidcConnection conn = ResolvedOidcConnection.resolve(connection);
+        assertEquals("https://idp.example.com", conn.issuer());
+        assertEquals(URI.create("https://idp.example.com/authorize"), conn.authorizationEndpointURI());
+        assertEquals("https://idp.example.com/token", conn.tokenEndpoint());
+        assertEquals(URI.create("https://idp.example.com/jwks.json"), conn.jwkSetURL());
+        assertEquals("https://idp.example.com/userinfo", connection.userInfoUrl());
+        assertNull(connection.providerMetadata());
+
+        verifyNoInteractions(metadataRegistry);
+    }
+
+    @Test
+    void staticMetadataWithoutUserInfoEndpoint() {
+        OidcConnectionImpl connection = createConnection(Map.of(
+                "issuer", "https://idp.example.com",
+                "authorizationEndpoint", "https://idp.example.com/authorize",
+                "tokenEndpoint", "https://idp.example.com/token",
+                "jwkSetURL", "https://idp.example.com/jwks.json"));
+
+        OAuthException exception = assertThrows(OAuthException.class, connection::userInfoUrl);
+        assertEquals("No UserInfo endpoint configured for connection test", exception.getMessage());
+        verifyNoInteractions(metadataRegistry);
+    }
+
+    @Test
+    void explicitEndpointOverridesDiscoveredOne() {
+        when(metadataRegistry.getAuthorizationEndpoint("https://idp.example.com"))
+                .thenReturn(URI.create("https://idp.example.com/discovered/authorize"));
+        OidcConnectionImpl connection = createConnection(Map.of(
+                "tokenEndpoint", "https://proxy.example.com/token"));
+
+        assertEquals("https://proxy.example.com/token", connection.tokenEndpoint());
+        assertEquals("https://idp.example.com/discovered/authorize", connection.authorizationEndpoint());
+        verify(metadataRegistry).getAuthorizationEndpoint("https://idp.example.com");
+    }
+
+    private OidcConnectionImpl createConnection(Map<String, String> endpoints) {
+        Map<String, Object> properties = new HashMap<>(endpoints);
+        properties.put("name", "test");
+        properties.put("baseUrl", "https://idp.example.com");
+        properties.put("clientId", "client-id");
+        properties.put("clientSecret", "client-secret");
+        properties.put("scopes", new String[] {"openid"});
+        properties.put("additionalAuthorizationParameters", new String[0]);
+        return new OidcConnectionImpl(Converters.standardConverter().convert(properties).to(OidcConnectionImpl.Config.class),
+                metadataRegistry);
+    }
+}
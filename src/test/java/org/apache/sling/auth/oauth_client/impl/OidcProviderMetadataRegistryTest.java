@@ -0,0 +1,236 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.nimbusds.oauth2.sdk.http.HTTPRequest;
+import com.nimbusds.oauth2.sdk.http.HTTPResponse;
+import com.nimbusds.openid.connect.sdk.op.OIDCProviderMetadata;
+import com.sun.net.httpserver.HttpServer;
+
+import net.minidev.json.JSONObject;
+
+class OidcProviderMetadataRegistryTest {
+
+    private HttpServer idpServer;
+    private String baseUrl;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger status = new AtomicInteger(200);
+    private final AtomicReference<String> tokenEndpoint = new AtomicReference<>("/token");
+    private volatile CountDownLatch release = new CountDownLatch(0);
+    private OidcProviderMetadataRegistry registry;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        idpServer = HttpServer.create(new InetSocketAddress(0), 0);
+        idpServer.setExecutor(Executors.newCachedThreadPool());
+        baseUrl = "http://localhost:" + idpServer.getAddress().getPort();
+        idpServer.createContext("/.well-known/openid-configuration", exchange -> {
+            requests.incrementAndGet();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] response = new JSONObject(Map.of(
+                    "issuer", baseUrl,
+                    "authorization_endpoint", baseUrl + "/authorize",
+                    "token_endpoint", baseUrl + tokenEndpoint.get(),
+                    "jwks_uri", baseUrl + "/jwks.json",
+                    "response_types_supported", List.of("code"),
+                    "subject_types_supported", List.of("public"),
+                    "id_token_signing_alg_values_supported", List.of("RS256")))
+                    .toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status.get(), response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        });
+        idpServer.createContext("/jwks.json", exchange -> {
+            byte[] response = "{\"keys\":[]}".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status.get(), response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        });
+        idpServer.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        if (registry != null) {
+            registry.deactivate();
+        }
+        release.countDown();
+        idpServer.stop(0);
+    }
+
+    @Test
+    void metadataCached() {
+        registry = new OidcProviderMetadataRegistry(new JdkHttpTransport(5000, 10000, 10));
+
+        OIDCProviderMetadata metadata = registry.getProviderMetadata(baseUrl);
+        assertThat(metadata.getTokenEndpointURI()).hasToString(baseUrl + "/token");
+        assertThat(registry.getProviderMetadata(baseUrl)).isSameAs(metadata);
+        assertThat(registry.getIssuer(baseUrl)).isEqualTo(baseUrl);
+        assertThat(requests.get()).isEqualTo(1);
+    }
+
+    @Test
+    void concurrentMissesShareOneRequest() throws Exception {
+        registry = new OidcProviderMetadataRegistry(new JdkHttpTransport(5000, 10000, 10));
+        release = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<OIDCProviderMetadata>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                results.add(executor.submit(() -> registry.getProviderMetadata(baseUrl)));
+            }
+            await().atMost(Duration.ofSeconds(10)).until(() -> requests.get() == 1);
+            release.countDown();
+
+            OIDCProviderMetadata metadata = results.get(0).get(10, TimeUnit.SECONDS);
+            for (Future<OIDCProviderMetadata> result : results) {
+                assertThat(result.get(10, TimeUnit.SECONDS)).isSameAs(metadata);
+            }
+            assertThat(requests.get()).isEqualTo(1);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void metadataRefreshedAheadOfExpiry() {
+        registry = new OidcProviderMetadataRegistry(new JdkHttpTransport(5000, 10000, 10), 60000, 60000, 1000, 60000, null);
+
+        OIDCProviderMetadata metadata = registry.getProviderMetadata(baseUrl);
+        // the cached metadata is returned while the refresh runs in the background
+        tokenEndpoint.set("/token2");
+        assertThat(registry.getProviderMetadata(baseUrl)).isSameAs(metadata);
+
+        await().atMost(Duration.ofSeconds(10)).until(() -> requests.get() == 2);
+        await().atMost(Duration.ofSeconds(10)).untilAsserted(() ->
+                assertThat(registry.getTokenEndpoint(baseUrl)).hasToString(baseUrl + "/token2"));
+    }
+
+    @Test
+    void unchangedMetadataKeepsInstance() {
+        registry = new OidcProviderMetadataRegistry(new JdkHttpTransport(5000, 10000, 10), 60000, 60000, 1000, 60000, null);
+
+        OIDCProviderMetadata metadata = registry.getProviderMetadata(baseUrl);
+        registry.getProviderMetadata(baseUrl);
+        await().atMost(Duration.ofSeconds(10)).until(() -> requests.get() >= 2);
+
+        assertThat(registry.getProviderMetadata(baseUrl)).isSameAs(metadata);
+    }
+
+    @Test
+    void staleMetadataUsedWhenRefreshFails() throws Exception {
+        registry = new OidcProviderMetadataRegistry(new JdkHttpTransport(5000, 10000, 10), 50, 0, 60000, 60000, null);
+
+        OIDCProviderMetadata metadata = registry.getProviderMetadata(baseUrl);
+        status.set(500);
+        Thread.sleep(100);
+
+        assertThat(registry.getProviderMetadata(baseUrl)).isSameAs(metadata);
+        await().atMost(Duration.ofSeconds(10)).until(() -> requests.get() == 2);
+        for (int i = 0; i < 5; i++) {
+            assertThat(registry.getProviderMetadata(baseUrl)).isSameAs(metadata);
+        }
+        // the failed refresh is not retried during the backoff
+        assertThat(requests.get()).isEqualTo(2);
+    }
+
+    @Test
+    void failuresCachedWithBackoff() throws Exception {
+        registry = new OidcProviderMetadataRegistry(new JdkHttpTransport(5000, 10000, 10), 60000, 0, 200, 60000, null);
+        status.set(500);
+
+        assertThatThrownBy(() -> registry.getProviderMetadata(baseUrl))
+                .isInstanceOf(OAuthException.class)
+                .hasMessageContaining("Status code 500");
+        assertThatThrownBy(() -> registry.getProviderMetadata(baseUrl))
+                .isInstanceOf(OAuthException.class);
+        assertThat(requests.get()).isEqualTo(1);
+
+        status.set(200);
+        Thread.sleep(250);
+        assertThat(registry.getTokenEndpoint(baseUrl)).hasToString(baseUrl + "/token");
+        assertThat(requests.get()).isEqualTo(2);
+    }
+
+    @Test
+    void storedMetadataUsedAfterRestart(@TempDir Path dataDir) {
+        ProviderMetadataFileCache fileCache = new ProviderMetadataFileCache(dataDir.toFile());
+        registry = new OidcProviderMetadataRegistry(new JdkHttpTransport(5000, 10000, 10), 60000, 0, 60000, 60000, fileCache);
+        registry.getProviderMetadata(baseUrl);
+        registry.deactivate();
+
+        // the provider is unavailable after the restart
+        status.set(503);
+        registry = new OidcProviderMetadataRegistry(new JdkHttpTransport(5000, 10000, 10), 60000, 0, 60000, 60000, fileCache);
+        assertThat(registry.getTokenEndpoint(baseUrl)).hasToString(baseUrl + "/token");
+
+        // and the stored metadata is revalidated in the background
+        await().atMost(Duration.ofSeconds(10)).until(() -> requests.get() == 2);
+        assertThat(registry.getTokenEndpoint(baseUrl)).hasToString(baseUrl + "/token");
+    }
+
+    @Test
+    void storedJWKSetUsedWhenProviderUnavailable(@TempDir Path dataDir) throws Exception {
+        registry = new OidcProviderMetadataRegistry(new JdkHttpTransport(5000, 10000, 10), 60000, 0, 1000, 60000,
+                new ProviderMetadataFileCache(dataDir.toFile()));
+        HTTPRequest request = new HTTPRequest(HTTPRequest.Method.GET, URI.create(baseUrl + "/jwks.json"));
+        assertThat(registry.jwkSetTransport(new JdkHttpTransport(5000, 10000, 10)).send(request).getStatusCode())
+                .isEqualTo(200);
+
+        status.set(502);
+        assertThat(registry.jwkSetTransport(new JdkHttpTransport(5000, 10000, 10)).send(request).getContent())
+                .isEqualTo("{\"keys\":[]}");
+
+        idpServer.stop(0);
+        HTTPResponse response = registry.jwkSetTransport(new JdkHttpTransport(5000, 10000, 10)).send(request);
+        assertThat(response.getStatusCode()).isEqualTo(200);
+        assertThat(response.getContentAsJSONObject()).containsKey("keys");
+    }
+}
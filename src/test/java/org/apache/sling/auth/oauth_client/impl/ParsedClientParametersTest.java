@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import org.junit.jupiter.api.Test;
+
+class ParsedClientParametersTest {
+
+    @Test
+    void parsedOnce() throws Exception {
+        ParsedClientParameters parameters = new ParsedClientParameters("client-id", "client-secret",
+                "https://idp.example.com/authorize", "https://idp.example.com/token");
+
+        assertThat(parameters.clientID().getValue()).isEqualTo("client-id");
+        assertThat(parameters.clientCredentials()).isSameAs(parameters.clientCredentials());
+        assertThat(parameters.clientCredentials().getClientSecret().getValue()).isEqualTo("client-secret");
+        assertThat(parameters.authorizationEndpointURI()).isEqualTo(URI.create("https://idp.example.com/authorize"));
+        assertThat(parameters.tokenEndpointURI()).isSameAs(parameters.tokenEndpointURI());
+    }
+
+    @Test
+    void invalidValuesReportedOnUse() {
+        ParsedClientParameters parameters = new ParsedClientParameters("", null, "https://idp example/authorize",
+                "https://idp example/token");
+
+        assertThatThrownBy(parameters::clientID).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(parameters::clientCredentials).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(parameters::authorizationEndpointURI).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(parameters::tokenEndpointURI).isInstanceOf(URISyntaxException.class);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.utility.DockerImageName;
+
+import com.redis.testcontainers.RedisContainer;
+
+@Testcontainers
+class RedisKeyRingStoreTest {
+
+    private static final long SESSION_TIMEOUT_MSEC = 60 * 1000L;
+
+    @Container
+    private final RedisContainer redis = new RedisContainer(DockerImageName.parse("redis:6.2.6"));
+
+    @Test
+    void compareAndSet() throws Exception {
+        KeyRingStore store = RedisKeyRingStore.create(redis.getRedisURI());
+        try {
+            byte[] keys = "keys".getBytes(StandardCharsets.UTF_8);
+            byte[] otherKeys = "other-keys".getBytes(StandardCharsets.UTF_8);
+
+            assertThat(store.load()).isNull();
+            assertThat(store.store(null, keys)).isTrue();
+            assertThat(store.store(null, otherKeys)).as("stored keys were changed").isFalse();
+            assertThat(store.store(keys, otherKeys)).isTrue();
+            assertThat(store.load()).isEqualTo(otherKeys);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    void cookiesValidOnAllInstances() throws Exception {
+        TokenStore first = new TokenStore(RedisKeyRingStore.create(redis.getRedisURI()), SESSION_TIMEOUT_MSEC, true, 0);
+        TokenStore second = new TokenStore(RedisKeyRingStore.create(redis.getRedisURI()), SESSION_TIMEOUT_MSEC, true, 0);
+        try {
+            long expires = System.currentTimeMillis() + SESSION_TIMEOUT_MSEC;
+            assertThat(second.isValid(first.encode(expires, "testUser"))).isTrue();
+            assertThat(first.isValid(second.encode(expires, "testUser"))).isTrue();
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+}
@@ -16,12 +16,18 @@
  */
 package org.apache.sling.auth.oauth_client.impl;
 
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+import java.time.Duration;
+import java.util.HashMap;
 import java.util.Map;
 
 import org.apache.sling.auth.oauth_client.impl.RedisOAuthTokenStore.Config;
 import org.apache.sling.testing.mock.sling.ResourceResolverType;
 import org.apache.sling.testing.mock.sling.junit5.SlingContext;
 import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
 import org.osgi.util.converter.Converters;
 import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
@@ -29,11 +35,13 @@ import org.testcontainers.utility.DockerImageName;
 
 import com.redis.testcontainers.RedisContainer;
 
+import redis.clients.jedis.JedisPooled;
+
 @Testcontainers
 public class RedisOAuthTokenStoreTest extends TokenStoreTestSupport<RedisOAuthTokenStore> {
 
     @Container
-    private final RedisContainer redis = new RedisContainer(DockerImageName.parse("redis:6.2.6"));
+    private final RedisContainer redis = new RedisContainer(DockerImageName.parse("redis:7.4"));
     
     RedisOAuthTokenStoreTest() {
         super(MockOidcConnection.DEFAULT_CONNECTION, new SlingContext(ResourceResolverType.JCR_MOCK));
@@ -41,10 +49,201 @@ public class RedisOAuthTokenStoreTest extends TokenStoreTestSupport<RedisOAuthTo
 
     @Override
     @NotNull RedisOAuthTokenStore createTokenStore() {
+        return createTokenStore(Map.of());
+    }
+
+    private @NotNull RedisOAuthTokenStore createTokenStore(@NotNull Map<String, Object> properties) {
+        Map<String, Object> config = new HashMap<>();
+        config.put("redisUrl", redis.getRedisURI());
+        config.putAll(properties);
         Config cfg = Converters.standardConverter()
-            .convert(Map.of("redisUrl", redis.getRedisURI()))
+            .convert(config)
             .to(RedisOAuthTokenStore.Config.class);
         
         return new RedisOAuthTokenStore(cfg);
     }
+
+    @Test
+    void getTokens_valid() {
+        RedisOAuthTokenStore tokenStore = createTokenStore();
+        tokenStore.persistTokens(connection, context.resourceResolver(), new OAuthTokens("access", 3600, "refresh"));
+
+        StoredTokens tokens = tokenStore.getTokens(connection, context.resourceResolver());
+        assertThat(tokens.accessToken().getValue()).isEqualTo("access");
+        assertThat(tokens.accessToken().getExpiresAt()).isGreaterThan(System.currentTimeMillis());
+        assertThat(tokens.refreshToken()).isNotNull()
+            .extracting( OAuthToken::getValue )
+            .isEqualTo("refresh");
+    }
+
+    @Test
+    void getTokens_expiredWithRefreshToken() {
+        RedisOAuthTokenStore tokenStore = createTokenStore();
+        tokenStore.persistTokens(connection, context.resourceResolver(), new OAuthTokens("access", 1, "refresh"));
+
+        await().atMost(Duration.ofSeconds(5)).untilAsserted(() ->
+            assertThat(tokenStore.getTokens(connection, context.resourceResolver()).accessToken().getState()).isEqualTo(TokenState.EXPIRED));
+
+        StoredTokens tokens = tokenStore.getTokens(connection, context.resourceResolver());
+        assertThat(tokens.refreshToken()).isNotNull()
+            .extracting( OAuthToken::getValue )
+            .isEqualTo("refresh");
+    }
+
+    @Test
+    void persistTokens_keepsRefreshToken() {
+        RedisOAuthTokenStore tokenStore = createTokenStore();
+        tokenStore.persistTokens(connection, context.resourceResolver(), new OAuthTokens("access", 3600, "refresh"));
+        tokenStore.persistTokens(connection, context.resourceResolver(), new OAuthTokens("access2", 3600, null));
+
+        StoredTokens tokens = tokenStore.getTokens(connection, context.resourceResolver());
+        assertThat(tokens.accessToken().getValue()).isEqualTo("access2");
+        assertThat(tokens.refreshToken()).isNotNull()
+            .extracting( OAuthToken::getValue )
+            .isEqualTo("refresh");
+    }
+
+    @Test
+    void persistTokens_refreshTokenExpires() {
+        RedisOAuthTokenStore tokenStore = createTokenStore(Map.of("refreshTokenTimeToLive", 1000));
+        tokenStore.persistTokens(connection, context.resourceResolver(), new OAuthTokens("access", 0, "refresh"));
+        assertThat(tokenStore.getRefreshToken(connection, context.resourceResolver()).getState()).isEqualTo(TokenState.VALID);
+
+        await().atMost(Duration.ofSeconds(5)).untilAsserted(() ->
+            assertThat(tokenStore.getRefreshToken(connection, context.resourceResolver()).getState()).isEqualTo(TokenState.MISSING));
+        // the access token has no lifetime and is kept
+        assertThat(tokenStore.getAccessToken(connection, context.resourceResolver()).getState()).isEqualTo(TokenState.VALID);
+    }
+
+    @Test
+    void clientSideCaching_invalidatedOnWrite() {
+        RedisOAuthTokenStore writer = createTokenStore();
+        RedisOAuthTokenStore reader = createTokenStore(Map.of("clientSideCaching", true));
+        try {
+            writer.persistTokens(connection, context.resourceResolver(), new OAuthTokens("access", 3600, "refresh"));
+            assertThat(reader.getAccessToken(connection, context.resourceResolver()).getValue()).isEqualTo("access");
+            assertThat(reader.getAccessToken(connection, context.resourceResolver()).getValue()).isEqualTo("access");
+
+            // written by another instance, the cached value is invalidated by Redis
+            writer.persistTokens(connection, context.resourceResolver(), new OAuthTokens("access2", 3600, null));
+            await().atMost(Duration.ofSeconds(5)).untilAsserted(() ->
+                assertThat(reader.getAccessToken(connection, context.resourceResolver()).getValue()).isEqualTo("access2"));
+
+            writer.clearAccessToken(connection, context.resourceResolver());
+            await().atMost(Duration.ofSeconds(5)).untilAsserted(() ->
+                assertThat(reader.getAccessToken(connection, context.resourceResolver()).getState()).isEqualTo(TokenState.EXPIRED));
+        } finally {
+            reader.deactivate();
+            writer.deactivate();
+        }
+    }
+
+    @Test
+    void clientSideCaching_keepsExpiry() {
+        RedisOAuthTokenStore tokenStore = createTokenStore(Map.of("clientSideCaching", true));
+        try {
+            long before = System.currentTimeMillis();
+            tokenStore.persistTokens(connection, context.resourceResolver(), new OAuthTokens("access", 3600, "refresh"));
+
+            for (int i = 0; i < 2; i++) {
+                // the second lookup is served from the cache
+                OAuthToken accessToken = tokenStore.getTokens(connection, context.resourceResolver()).accessToken();
+                assertThat(accessToken.getValue()).isEqualTo("access");
+                assertThat(accessToken.getExpiresAt()).isBetween(before + 3600 * 1000L, System.currentTimeMillis() + 3600 * 1000L);
+            }
+        } finally {
+            tokenStore.deactivate();
+        }
+    }
+
+    @Test
+    void parseAccessToken() {
+        OAuthToken token = RedisOAuthTokenStore.parseAccessToken("1234|access|with|separators");
+        assertThat(token.getValue()).isEqualTo("access|with|separators");
+        assertThat(token.getExpiresAt()).isEqualTo(1234);
+
+        assertThat(RedisOAuthTokenStore.parseAccessToken("0|access").getExpiresAt()).isZero();
+        assertThat(RedisOAuthTokenStore.parseAccessToken("access").getValue()).isEqualTo("access");
+    }
+
+    @Test
+    void keyFor_sharesHashTag() {
+        assertThat(RedisOAuthTokenStore.keyFor("user", connection, "access_token"))
+            .isEqualTo("sling.oauth.tokens.{user." + connection.name() + "}.access_token");
+    }
+
+    @Test
+    void legacyKeysMigrated() {
+        try (JedisPooled jedis = new JedisPooled(redis.getRedisURI())) {
+            String user = context.resourceResolver().getUserID();
+            String legacyAccessKey = RedisOAuthTokenStore.legacyKeyFor(user, connection, "access_token");
+            String legacyRefreshKey = RedisOAuthTokenStore.legacyKeyFor(user, connection, "refresh_token");
+            jedis.setex(legacyAccessKey, 3600, "access");
+            jedis.set(legacyRefreshKey, "refresh");
+
+            assertThat(createTokenStore().getTokens(connection, context.resourceResolver()).refreshToken().getState())
+                .as("legacy keys are only looked up if enabled")
+                .isEqualTo(TokenState.MISSING);
+
+            RedisOAuthTokenStore tokenStore = createTokenStore(Map.of("migrateLegacyKeys", true));
+            StoredTokens tokens = tokenStore.getTokens(connection, context.resourceResolver());
+            assertThat(tokens.accessToken().getValue()).isEqualTo("access");
+            assertThat(tokens.accessToken().getExpiresAt()).isGreaterThan(System.currentTimeMillis());
+            assertThat(tokens.refreshToken().getValue()).isEqualTo("refresh");
+
+            assertThat(jedis.exists(legacyAccessKey)).isFalse();
+            assertThat(jedis.exists(legacyRefreshKey)).isFalse();
+            assertThat(jedis.pttl(RedisOAuthTokenStore.keyFor(user, connection, "access_token"))).isPositive();
+            assertThat(jedis.get(RedisOAuthTokenStore.keyFor(user, connection, "refresh_token"))).isEqualTo("refresh");
+        }
+    }
+
+    @Test
+    void legacyKeysRemovedOnWrite() {
+        try (JedisPooled jedis = new JedisPooled(redis.getRedisURI())) {
+            String legacyRefreshKey = RedisOAuthTokenStore.legacyKeyFor(context.resourceResolver().getUserID(), connection, "refresh_token");
+            jedis.set(legacyRefreshKey, "old-refresh");
+
+            RedisOAuthTokenStore tokenStore = createTokenStore(Map.of("migrateLegacyKeys", true));
+            tokenStore.persistTokens(connection, context.resourceResolver(), new OAuthTokens("access", 3600, null));
+            assertThat(jedis.exists(legacyRefreshKey)).isFalse();
+        }
+    }
+
+    @Test
+    void legacyKeysDoNotOverwriteNewerTokens() {
+        try (JedisPooled jedis = new JedisPooled(redis.getRedisURI())) {
+            String user = context.resourceResolver().getUserID();
+            String legacyRefreshKey = RedisOAuthTokenStore.legacyKeyFor(user, connection, "refresh_token");
+            jedis.set(legacyRefreshKey, "old-refresh");
+
+            // tokens stored by another instance after the legacy keys were looked up
+            createTokenStore().persistTokens(connection, context.resourceResolver(), new OAuthTokens("access", 3600, "refresh"));
+
+            RedisOAuthTokenStore tokenStore = createTokenStore(Map.of("migrateLegacyKeys", true));
+            StoredTokens tokens = tokenStore.migrateLegacyTokens(user, connection);
+            assertThat(tokens.accessToken().getValue()).isEqualTo("access");
+            assertThat(tokens.refreshToken().getValue()).isEqualTo("refresh");
+            assertThat(jedis.get(RedisOAuthTokenStore.keyFor(user, connection, "refresh_token"))).isEqualTo("refresh");
+            assertThat(jedis.exists(legacyRefreshKey)).isFalse();
+        }
+    }
+
+    @Test
+    void replicaReads() {
+        // a second database stands in for the replica
+        RedisOAuthTokenStore replica = createTokenStore(Map.of("redisUrl", redis.getRedisURI() + "/1"));
+        RedisOAuthTokenStore tokenStore = createTokenStore(Map.of("replicaUrls", new String[] { redis.getRedisURI() + "/1" }));
+        try {
+            // tokens not yet replicated are read from the primary
+            tokenStore.persistTokens(connection, context.resourceResolver(), new OAuthTokens("primary", 3600, "refresh"));
+            assertThat(tokenStore.getAccessToken(connection, context.resourceResolver()).getValue()).isEqualTo("primary");
+
+            replica.persistTokens(connection, context.resourceResolver(), new OAuthTokens("replica", 3600, "refresh"));
+            assertThat(tokenStore.getAccessToken(connection, context.resourceResolver()).getValue()).isEqualTo("replica");
+        } finally {
+            tokenStore.deactivate();
+            replica.deactivate();
+        }
+    }
 }
@@ -38,6 +38,7 @@ import java.util.Base64;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertInstanceOf;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.mock;
@@ -50,11 +51,13 @@ class SlingLoginCookieManagerTest {
     private final MockRequest request = new MockRequest();
     private final MockResponse response = new MockResponse();
     private final SlingRepository repository = mock(SlingRepository.class);
+    private SlingLoginCookieManager.SlingLoginCookieManagerConfig config;
+    private BundleContext bundleContext;
     private SlingLoginCookieManager slingLoginCookieManager;
 
     @BeforeEach
     void setup() throws IOException, NoSuchAlgorithmException, InvalidKeyException {
-        SlingLoginCookieManager.SlingLoginCookieManagerConfig config = mock(SlingLoginCookieManager.SlingLoginCookieManagerConfig.class);
+        config = mock(SlingLoginCookieManager.SlingLoginCookieManagerConfig.class);
 
         Path tempFilePath = Files.createTempFile("cookie-tokens","bin");
         File tempFile = tempFilePath.toFile();
@@ -64,7 +67,7 @@ class SlingLoginCookieManagerTest {
         when(config.sessionTimeout()).thenReturn(8 * 60 * 60 * 1000L);
         when(config.cookieName()).thenReturn(COOKIE_NAME);
 
-        BundleContext bundleContext = mock(BundleContext.class);
+        bundleContext = mock(BundleContext.class);
         when(bundleContext.getDataFile("cookie-tokens")).thenReturn(tempFile);
         
         slingLoginCookieManager = new SlingLoginCookieManager(config, bundleContext);
@@ -93,6 +96,144 @@ class SlingLoginCookieManagerTest {
 
     }
 
+    @Test
+    void setGetVerifyCompactLoginCookie() {
+        when(config.cookieFormat()).thenReturn(SlingLoginCookieManager.CookieFormat.COMPACT);
+        SlingLoginCookieManager compactCookieManager = new SlingLoginCookieManager(config, bundleContext);
+
+        OidcAuthCredentials creds = mock(OidcAuthCredentials.class);
+        when(creds.getUserId()).thenReturn("testUser");
+
+        compactCookieManager.setLoginCookie(request, response, repository, creds);
+
+        Cookie cookie = parseSetCookieHeader(response.getHeader("Set-Cookie"));
+        assertNotNull(cookie);
+        byte[] decoded = Base64.getUrlDecoder().decode(cookie.getValue());
+        assertEquals(TokenStore.COMPACT_FORMAT_VERSION, decoded[0]);
+
+        request.addCookie(cookie);
+        AuthenticationInfo authInfo = compactCookieManager.verifyLoginCookie(request);
+        assertNotNull(authInfo);
+        assertEquals("testUser", authInfo.getUser());
+
+        // cookies are accepted independent of the configured format
+        authInfo = slingLoginCookieManager.verifyLoginCookie(request);
+        assertNotNull(authInfo);
+        assertEquals("testUser", authInfo.getUser());
+    }
+
+    @Test
+    void verifyLegacyLoginCookieWithCompactFormat() {
+        OidcAuthCredentials creds = mock(OidcAuthCredentials.class);
+        when(creds.getUserId()).thenReturn("testUser");
+        slingLoginCookieManager.setLoginCookie(request, response, repository, creds);
+        request.addCookie(parseSetCookieHeader(response.getHeader("Set-Cookie")));
+
+        when(config.cookieFormat()).thenReturn(SlingLoginCookieManager.CookieFormat.COMPACT);
+        SlingLoginCookieManager compactCookieManager = new SlingLoginCookieManager(config, bundleContext);
+
+        AuthenticationInfo authInfo = compactCookieManager.verifyLoginCookie(request);
+        assertNotNull(authInfo);
+        assertEquals("testUser", authInfo.getUser());
+    }
+
+    @Test
+    void verifyLoginCookieTamperedCompactValue() {
+        when(config.cookieFormat()).thenReturn(SlingLoginCookieManager.CookieFormat.COMPACT);
+        SlingLoginCookieManager compactCookieManager = new SlingLoginCookieManager(config, bundleContext);
+
+        OidcAuthCredentials creds = mock(OidcAuthCredentials.class);
+        when(creds.getUserId()).thenReturn("testUser");
+        compactCookieManager.setLoginCookie(request, response, repository, creds);
+
+        byte[] decoded = Base64.getUrlDecoder().decode(parseSetCookieHeader(response.getHeader("Set-Cookie")).getValue());
+        decoded[decoded.length - 1] ^= 1;
+        request.addCookie(new Cookie(COOKIE_NAME, Base64.getUrlEncoder().withoutPadding().encodeToString(decoded)));
+        assertNull(compactCookieManager.verifyLoginCookie(request));
+    }
+
+    @Test
+    void verifyCachedLoginCookie() {
+        when(config.cookieCacheSize()).thenReturn(100);
+        when(config.cookieCacheTimeout()).thenReturn(60 * 1000L);
+        SlingLoginCookieManager cachingCookieManager = new SlingLoginCookieManager(config, bundleContext);
+
+        OidcAuthCredentials creds = mock(OidcAuthCredentials.class);
+        when(creds.getUserId()).thenReturn("testUser");
+        cachingCookieManager.setLoginCookie(request, response, repository, creds);
+        request.addCookie(parseSetCookieHeader(response.getHeader("Set-Cookie")));
+
+        AuthenticationInfo first = cachingCookieManager.verifyLoginCookie(request);
+        AuthenticationInfo second = cachingCookieManager.verifyLoginCookie(request);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertEquals("testUser", second.getUser());
+        // each request gets its own credentials, as they may be modified during authentication
+        assertNotSame(first.get(JcrResourceConstants.AUTHENTICATION_INFO_CREDENTIALS),
+                second.get(JcrResourceConstants.AUTHENTICATION_INFO_CREDENTIALS));
+    }
+
+    @Test
+    void renewLoginCookieDisabled() {
+        AuthenticationInfo authInfo = setAndVerifyLoginCookie(slingLoginCookieManager);
+
+        MockResponse renewalResponse = new MockResponse();
+        slingLoginCookieManager.renewLoginCookie(request, renewalResponse, repository, authInfo);
+        assertNull(renewalResponse.getHeader("Set-Cookie"));
+    }
+
+    @Test
+    void renewLoginCookieNotDue() {
+        when(config.sessionRenewalFraction()).thenReturn(0.5);
+        SlingLoginCookieManager renewingCookieManager = new SlingLoginCookieManager(config, bundleContext);
+        AuthenticationInfo authInfo = setAndVerifyLoginCookie(renewingCookieManager);
+
+        MockResponse renewalResponse = new MockResponse();
+        renewingCookieManager.renewLoginCookie(request, renewalResponse, repository, authInfo);
+        assertNull(renewalResponse.getHeader("Set-Cookie"));
+    }
+
+    @Test
+    void renewLoginCookieThrottled() {
+        // any remaining lifetime is below the whole session timeout
+        when(config.sessionRenewalFraction()).thenReturn(1.0);
+        SlingLoginCookieManager renewingCookieManager = new SlingLoginCookieManager(config, bundleContext);
+        AuthenticationInfo authInfo = setAndVerifyLoginCookie(renewingCookieManager);
+
+        MockResponse renewalResponse = new MockResponse();
+        renewingCookieManager.renewLoginCookie(request, renewalResponse, repository, authInfo);
+        Cookie renewed = parseSetCookieHeader(renewalResponse.getHeader("Set-Cookie"));
+        assertEquals(COOKIE_NAME, renewed.getName());
+
+        // concurrent requests with the old cookie do not renew it again
+        MockResponse throttledResponse = new MockResponse();
+        renewingCookieManager.renewLoginCookie(request, throttledResponse, repository, authInfo);
+        assertNull(throttledResponse.getHeader("Set-Cookie"));
+    }
+
+    @Test
+    void renewLoginCookieFractionClamped() {
+        // treated like 1.0, with a warning
+        when(config.sessionRenewalFraction()).thenReturn(2.0);
+        SlingLoginCookieManager renewingCookieManager = new SlingLoginCookieManager(config, bundleContext);
+        AuthenticationInfo authInfo = setAndVerifyLoginCookie(renewingCookieManager);
+
+        MockResponse renewalResponse = new MockResponse();
+        renewingCookieManager.renewLoginCookie(request, renewalResponse, repository, authInfo);
+        assertEquals(COOKIE_NAME, parseSetCookieHeader(renewalResponse.getHeader("Set-Cookie")).getName());
+    }
+
+    private @NotNull AuthenticationInfo setAndVerifyLoginCookie(@NotNull SlingLoginCookieManager cookieManager) {
+        OidcAuthCredentials creds = mock(OidcAuthCredentials.class);
+        when(creds.getUserId()).thenReturn("testUser");
+        cookieManager.setLoginCookie(request, response, repository, creds);
+        request.addCookie(parseSetCookieHeader(response.getHeader("Set-Cookie")));
+
+        AuthenticationInfo authInfo = cookieManager.verifyLoginCookie(request);
+        assertNotNull(authInfo);
+        return authInfo;
+    }
+
     @Test
     void verifyNoLoginCookie() {
         //No cookies are set
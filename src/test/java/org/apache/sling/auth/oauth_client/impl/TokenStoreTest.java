@@ -30,14 +30,23 @@ import java.math.BigInteger;
 import java.nio.file.Files;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 /* TokenStore tests, taken from org.apache.sling.auth.form */
@@ -93,6 +102,63 @@ public class TokenStoreTest {
         }        
     }
 
+    @Test
+    public void tamperedTokenTest() {
+        final String tamperedUser = encodedToken + "x";
+        assertFalse(store.isValid(tamperedUser));
+
+        final char first = encodedToken.charAt(0);
+        final String tamperedHmac = (first == '0' ? '1' : '0') + encodedToken.substring(1);
+        assertFalse(store.isValid(tamperedHmac));
+    }
+
+    @Test
+    public void rejectionCountersTest() throws Exception {
+        final LoginCookieRejections rejections = store.rejections();
+        assertFalse(store.isValid("nothing"));
+        assertFalse(store.isValid(store.encode(1, USER_ID)));
+        assertFalse(store.isValid(encodedToken + "x"));
+
+        // only the token in use exists in a new store
+        final int separator = encodedToken.indexOf('@');
+        final char unusedToken = encodedToken.charAt(separator + 1) == '4' ? '3' : '4';
+        assertFalse(store.isValid(encodedToken.substring(0, separator + 1) + unusedToken + encodedToken.substring(separator + 2)));
+
+        assertEquals(1, rejections.getInvalidFormat());
+        assertEquals(1, rejections.getExpired());
+        assertEquals(1, rejections.getInvalidSignature());
+        assertEquals(1, rejections.getUnknownKey());
+    }
+
+    @Test
+    public void nonAsciiUserIdTest() throws InvalidKeyException, IllegalStateException, NoSuchAlgorithmException {
+        final String token = store.encode(DEFAULT_EXPIRATION_TIME_MSEC, "\u00fcser-\u00e9");
+        assertTrue(store.isValid(token));
+    }
+
+    @Test
+    public void compactTokenTest() {
+        final byte[] token = store.encodeCompact(DEFAULT_EXPIRATION_TIME_MSEC, "\u00fcser-\u00e9");
+        assertEquals(TokenStore.COMPACT_FORMAT_VERSION, token[0]);
+        final LoginCookie loginCookie = store.validate(token);
+        assertNotNull(loginCookie);
+        assertEquals("\u00fcser-\u00e9", loginCookie.userId());
+        assertEquals(DEFAULT_EXPIRATION_TIME_MSEC, loginCookie.expires());
+    }
+
+    @Test
+    public void invalidCompactTokensTest() {
+        final byte[] token = store.encodeCompact(DEFAULT_EXPIRATION_TIME_MSEC, USER_ID);
+        for (int i = 0; i < token.length; i++) {
+            final byte[] tampered = token.clone();
+            tampered[i] ^= 1;
+            assertNull(store.validate(tampered));
+        }
+        assertNull(store.validate(Arrays.copyOf(token, token.length - USER_ID.length())));
+        assertNull(store.validate(new byte[0]));
+        assertNull(store.validate(store.encodeCompact(1, USER_ID)));
+    }
+
     @Test
     public void expiredTokenTest() throws InvalidKeyException, IllegalStateException, NoSuchAlgorithmException {
         final String expired = store.encode(1, USER_ID);
@@ -106,6 +172,8 @@ public class TokenStoreTest {
     
     @Test
     public void loadTokenFileTest() throws Exception {
+        // waits for the first token to be written in the background
+        store.close();
         final TokenStore newStore = new TokenStore(tokenFile, SESSION_TIMEOUT_MSEC, fastSeed);
         assertTrue(newStore.isValid(encodedToken));
 
@@ -113,6 +181,111 @@ public class TokenStoreTest {
         assertFalse(emptyStore.isValid(encodedToken));
     }
 
+    @Test
+    public void constructorDoesNotWaitForSeedingTest() throws Exception {
+        final CountDownLatch seeded = new CountDownLatch(1);
+        final SecureRandom slowRandom = new SecureRandom() {
+            @Override
+            public void nextBytes(byte[] bytes) {
+                try {
+                    seeded.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.nextBytes(bytes);
+            }
+        };
+        final File slowFile = additionalTokenFile();
+        final TokenStore slowStore = new TokenStore(new FileKeyRingStore(slowFile), SESSION_TIMEOUT_MSEC, fastSeed, 0, slowRandom);
+        try {
+            // the constructor returned although seeding is still in progress
+            assertFalse(slowFile.exists());
+            seeded.countDown();
+
+            // the first token is created and written without a cookie being issued
+            Awaitility.await("first token")
+                .atMost(Duration.ofSeconds(5))
+                .until(slowFile::exists);
+            assertTrue(slowStore.isValid(slowStore.encode(DEFAULT_EXPIRATION_TIME_MSEC, USER_ID)));
+        } finally {
+            seeded.countDown();
+            slowStore.close();
+        }
+    }
+
+    @Test
+    public void rotatedTokensPersistedTest() throws Exception {
+        // a short session timeout creates a new token on each encode call
+        final File rotatingFile = additionalTokenFile();
+        final TokenStore rotatingStore = new TokenStore(rotatingFile, 4, fastSeed);
+        final String first = rotatingStore.encode(DEFAULT_EXPIRATION_TIME_MSEC, USER_ID);
+        Thread.sleep(10);
+        final String second = rotatingStore.encode(DEFAULT_EXPIRATION_TIME_MSEC, USER_ID);
+        assertNotEquals(first.charAt(first.indexOf('@') + 1), second.charAt(second.indexOf('@') + 1));
+        rotatingStore.close();
+
+        final TokenStore newStore = new TokenStore(rotatingFile, 4, fastSeed);
+        assertTrue(newStore.isValid(first));
+        assertTrue(newStore.isValid(second));
+    }
+
+    @Test
+    public void concurrentEncodeTest() throws Exception {
+        final TokenStore rotatingStore = new TokenStore(additionalTokenFile(), 4, fastSeed);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<String>> tokens = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                tokens.add(executor.submit(() -> rotatingStore.encode(DEFAULT_EXPIRATION_TIME_MSEC, USER_ID)));
+            }
+            for (Future<String> token : tokens) {
+                // tokens may have rotated out of the ring already, but encoding must never fail
+                assertEquals(USER_ID, TokenStore.split(token.get())[2]);
+            }
+        } finally {
+            executor.shutdownNow();
+            rotatingStore.close();
+        }
+    }
+
+    @Test
+    public void sharedTokensTest() throws Exception {
+        final SharedKeyRingStore sharedStore = new SharedKeyRingStore();
+        final TokenStore first = new TokenStore(sharedStore, SESSION_TIMEOUT_MSEC, fastSeed, 0);
+        final TokenStore second = new TokenStore(sharedStore, SESSION_TIMEOUT_MSEC, fastSeed, 0);
+        try {
+            assertTrue(second.isValid(first.encode(DEFAULT_EXPIRATION_TIME_MSEC, USER_ID)));
+            assertTrue(first.isValid(second.encode(DEFAULT_EXPIRATION_TIME_MSEC, USER_ID)));
+            assertNotNull(second.validate(first.encodeCompact(DEFAULT_EXPIRATION_TIME_MSEC, USER_ID)));
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    public void sharedTokensRotationTest() throws Exception {
+        // a short session timeout rotates the tokens with each synchronization
+        final SharedKeyRingStore sharedStore = new SharedKeyRingStore();
+        final TokenStore first = new TokenStore(sharedStore, 40, fastSeed, 5);
+        final TokenStore second = new TokenStore(sharedStore, 40, fastSeed, 5);
+        try {
+            final char initialToken = TokenStore.split(first.encode(DEFAULT_EXPIRATION_TIME_MSEC, USER_ID))[1].charAt(0);
+
+            // cookies issued after a rotation by any instance are valid on both instances
+            Awaitility.await("synchronization")
+                .atMost(Duration.ofSeconds(5))
+                .pollInterval(Duration.ofMillis(5))
+                .until(() -> {
+                    final String token = first.encode(DEFAULT_EXPIRATION_TIME_MSEC, USER_ID);
+                    return TokenStore.split(token)[1].charAt(0) != initialToken && second.isValid(token);
+                });
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
     @Test
     public void encodingPartsTest() throws Exception {
         String lastHexNumber = "";
@@ -133,4 +306,31 @@ public class TokenStoreTest {
             assertEquals(uniqueUserId, parts[2]);
         }
     }
+
+    /**
+     * A {@link KeyRingStore} shared between token stores in the same VM
+     */
+    private static class SharedKeyRingStore implements KeyRingStore {
+
+        private byte[] keys;
+
+        @Override
+        public synchronized byte[] load() {
+            return keys;
+        }
+
+        @Override
+        public synchronized boolean store(byte[] expected, byte[] keys) {
+            if (!Arrays.equals(expected, this.keys)) {
+                return false;
+            }
+            this.keys = keys;
+            return true;
+        }
+
+        @Override
+        public boolean isShared() {
+            return true;
+        }
+    }
 }
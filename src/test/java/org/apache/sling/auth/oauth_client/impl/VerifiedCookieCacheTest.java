@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.auth.oauth_client.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import org.awaitility.Awaitility;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class VerifiedCookieCacheTest {
+
+    private static final long SESSION_TIMEOUT_MSEC = 60 * 1000L;
+
+    @TempDir
+    Path tempDir;
+
+    private TokenStore tokenStore;
+
+    @AfterEach
+    void close() {
+        if (tokenStore != null) {
+            tokenStore.close();
+        }
+    }
+
+    @Test
+    void cachedCookie() throws Exception {
+        tokenStore = new TokenStore(new File(tempDir.toFile(), "cookie-tokens.bin"), SESSION_TIMEOUT_MSEC, true);
+        VerifiedCookieCache cache = new VerifiedCookieCache(tokenStore, 10, SESSION_TIMEOUT_MSEC);
+
+        String cookieValue = tokenStore.encode(System.currentTimeMillis() + SESSION_TIMEOUT_MSEC, "testUser");
+        assertNull(cache.get(cookieValue));
+
+        cache.put(cookieValue, validate(cookieValue));
+        assertEquals("testUser", cache.get(cookieValue).userId());
+        assertNull(cache.get(cookieValue + "x"));
+    }
+
+    @Test
+    void expiredCookie() throws Exception {
+        tokenStore = new TokenStore(new File(tempDir.toFile(), "cookie-tokens.bin"), SESSION_TIMEOUT_MSEC, true);
+        VerifiedCookieCache cache = new VerifiedCookieCache(tokenStore, 10, 50);
+
+        String cookieValue = tokenStore.encode(System.currentTimeMillis() + SESSION_TIMEOUT_MSEC, "testUser");
+        cache.put(cookieValue, validate(cookieValue));
+        assertEquals("testUser", cache.get(cookieValue).userId());
+
+        Awaitility.await("cache timeout")
+            .atMost(Duration.ofSeconds(5))
+            .pollInterval(Duration.ofMillis(10))
+            .until(() -> cache.get(cookieValue) == null);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void rotatedOutKey() throws Exception {
+        // a short session timeout creates a new token on each encode call
+        tokenStore = new TokenStore(new File(tempDir.toFile(), "cookie-tokens.bin"), 4, true);
+        VerifiedCookieCache cache = new VerifiedCookieCache(tokenStore, 10, SESSION_TIMEOUT_MSEC);
+
+        long expires = System.currentTimeMillis() + SESSION_TIMEOUT_MSEC;
+        String cookieValue = tokenStore.encode(expires, "testUser");
+        LoginCookie loginCookie = validate(cookieValue);
+        cache.put(cookieValue, loginCookie);
+        assertEquals("testUser", cache.get(cookieValue).userId());
+
+        Awaitility.await("key rotation")
+            .atMost(Duration.ofSeconds(5))
+            .pollInterval(Duration.ofMillis(2))
+            .until(() -> {
+                tokenStore.encode(expires, "otherUser");
+                return tokenStore.keyGeneration(loginCookie.tokenNumber()) != loginCookie.keyGeneration();
+            });
+        assertNull(cache.get(cookieValue));
+    }
+
+    @Test
+    void boundedSize() throws Exception {
+        tokenStore = new TokenStore(new File(tempDir.toFile(), "cookie-tokens.bin"), SESSION_TIMEOUT_MSEC, true);
+        VerifiedCookieCache cache = new VerifiedCookieCache(tokenStore, 2, SESSION_TIMEOUT_MSEC);
+
+        long expires = System.currentTimeMillis() + SESSION_TIMEOUT_MSEC;
+        for (int i = 0; i < 5; i++) {
+            String cookieValue = tokenStore.encode(expires, "user" + i);
+            cache.put(cookieValue, validate(cookieValue));
+        }
+        assertEquals(2, cache.size());
+        assertNull(cache.get(tokenStore.encode(expires, "user0")));
+        assertEquals("user4", cache.get(tokenStore.encode(expires, "user4")).userId());
+    }
+
+    @Test
+    void fullCacheEvictsLeastRecentlyUsed() throws Exception {
+        tokenStore = new TokenStore(new File(tempDir.toFile(), "cookie-tokens.bin"), SESSION_TIMEOUT_MSEC, true);
+        VerifiedCookieCache cache = new VerifiedCookieCache(tokenStore, 2, SESSION_TIMEOUT_MSEC);
+
+        long expires = System.currentTimeMillis() + SESSION_TIMEOUT_MSEC;
+        String first = tokenStore.encode(expires, "first");
+        String second = tokenStore.encode(expires, "second");
+        String third = tokenStore.encode(expires, "third");
+        cache.put(first, validate(first));
+        cache.put(second, validate(second));
+        // the cache is full of live entries, using the first one makes the second the least recently used
+        assertNotNull(cache.get(first));
+
+        cache.put(third, validate(third));
+        assertEquals(2, cache.size());
+        assertEquals("first", cache.get(first).userId());
+        assertNull(cache.get(second));
+        assertEquals("third", cache.get(third).userId());
+    }
+
+    private LoginCookie validate(String cookieValue) {
+        LoginCookie loginCookie = tokenStore.validate(cookieValue);
+        assertNotNull(loginCookie);
+        return loginCookie;
+    }
+}